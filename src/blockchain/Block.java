@@ -11,6 +11,12 @@ import java.nio.charset.StandardCharsets;
 public class Block implements Serializable {
 	private static final long serialVersionUID = 1L;
 	
+	// id, sender, version, timestamp, previous hash, nonce, target, merkle root and header hash
+	public static final int HEADER_SIZE = 8 + 40 + 3 + 8 + 64 + 4 + 4 + 64 + 64;
+	
+	// Previous hash of a first block is this marker followed by the date it was mined
+	public static final String GENESIS_MARKER = "ON BRINK OF COLLAPSE ";
+	
 	private String id;
 	private String sender;
 	private String version;
@@ -42,32 +48,62 @@ public class Block implements Serializable {
 			return "";
 		}
 		
-		// Hash transactions, we combined id + timestamp + senderHash to create the hash of each Tx.
 		List<String> hashes = new ArrayList<>();
-		
 		for (Transaction tx : transactions) {
-			String data = tx.getId() + tx.getTimestamp() + tx.getSenderHash() + tx.getVersion();
-			String hash = Hashing.sha256().hashString(data, StandardCharsets.UTF_8).toString();
-			hashes.add(hash);
+			hashes.add(transactionHash(tx));
 		}
 		
 		// Recursive Hashing until we end up with one hash
-		int hashesSize = hashes.size();
-		while(hashesSize > 1) {
-			List<String> newHashes = new ArrayList<>();
-			for(int i = 0; i < hashesSize; i+=2) {
-				String left = hashes.get(i);
-				String right = (i+1 < hashesSize) ? hashes.get(i+1) : left;
-				String combinedHash = Hashing.sha256()
-										.hashString(left + right, StandardCharsets.UTF_8).toString();
-				newHashes.add(combinedHash);
-			}
-			hashes = newHashes;
-			hashesSize = hashes.size();
+		while (hashes.size() > 1) {
+			hashes = nextLevel(hashes);
 		}
 		return hashes.get(0);
 	}
 	
+	// Hash of a transaction in the Merkle tree: its whole wire encoding, so the root commits to the
+	// inputs, outputs and signatures too (a Merkle proof then proves what the transaction pays)
+	public static String transactionHash(Transaction tx) {
+		return Hashing.sha256().hashBytes(WireCodec.encodeTransaction(tx)).toString();
+	}
+	
+	// Pairs of hashes combined into one, the last hash being paired with itself if the count is odd
+	private static List<String> nextLevel(List<String> hashes) {
+		List<String> newHashes = new ArrayList<>();
+		for (int i = 0; i < hashes.size(); i += 2) {
+			String left = hashes.get(i);
+			String right = (i + 1 < hashes.size()) ? hashes.get(i + 1) : left;
+			newHashes.add(Hashing.sha256().hashString(left + right, StandardCharsets.UTF_8).toString());
+		}
+		return newHashes;
+	}
+	
+	// Merkle branch of the transaction at index: its sibling at each level, from the leaves up
+	public List<String> getMerkleBranch(int index) {
+		List<String> branch = new ArrayList<>();
+		List<String> hashes = new ArrayList<>();
+		for (Transaction tx : transactions) {
+			hashes.add(transactionHash(tx));
+		}
+		while (hashes.size() > 1) {
+			int sibling = (index % 2 == 0) ? Math.min(index + 1, hashes.size() - 1) : index - 1;
+			branch.add(hashes.get(sibling));
+			hashes = nextLevel(hashes);
+			index /= 2;
+		}
+		return branch;
+	}
+	
+	// Merkle root obtained from a transaction hash, its index in the block and its branch
+	public static String merkleRootFromBranch(String txHash, int index, List<String> branch) {
+		String hash = txHash;
+		for (String sibling : branch) {
+			String combined = (index % 2 == 0) ? hash + sibling : sibling + hash;
+			hash = Hashing.sha256().hashString(combined, StandardCharsets.UTF_8).toString();
+			index /= 2;
+		}
+		return hash;
+	}
+	
 	// Block Hash Computation Method
 	public String calculateBlockHash() {
 		String data = version + id + timestamp + (hashPrevBlock != null ? hashPrevBlock : "") + nonce 
@@ -76,10 +112,39 @@ public class Block implements Serializable {
 		return Hashing.sha256().hashString(data, StandardCharsets.UTF_8).toString();
 	}
 	
+	// Estimated serialized size of the header and all transactions, in bytes
+	public int estimateSize() {
+		int size = HEADER_SIZE;
+		for (Transaction tx : transactions) size += tx.estimateSize();
+		return size;
+	}
+	
+	public int countSigOps() {
+		int sigOps = 0;
+		for (Transaction tx : transactions) sigOps += tx.countSigOps();
+		return sigOps;
+	}
+	
+	public boolean isGenesis() {
+		return hashPrevBlock != null && hashPrevBlock.startsWith(GENESIS_MARKER);
+	}
+	
 	public Block(String id, String sender) {
         this(id, sender, null, 0);
     }
 	
+	// Copy of the header fields and mining time, without the transactions
+	public Block toHeader() {
+		Block header = new Block(id, sender, hashPrevBlock, target);
+		header.version = version;
+		header.timestamp = timestamp;
+		header.nonce = nonce;
+		header.merkleRoot = merkleRoot;
+		header.hashHeaderBlock = hashHeaderBlock;
+		header.miningTime = miningTime;
+		return header;
+	}
+	
 	public String getId() {
 		return id;
 	}
@@ -148,6 +213,10 @@ public class Block implements Serializable {
 		return version;
 	}
 	
+	public void setVersion(String version) {
+		this.version = version;
+	}
+	
 	public long getMiningTime() { return miningTime; }
 	public void setMiningTime(long ms) { this.miningTime = ms; }
 
@@ -0,0 +1,372 @@
+package blockchain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Append-only on-disk storage of block bodies.
+// Blocks are appended in WireCodec format to segment files (blk00000.dat, blk00001.dat, ...) of at
+// most segmentMaxBytes each, and every append adds a small record to index.dat: block hash, segment,
+// offset, length and the block header. Reads go through memory-mapped segments and decode straight
+// from the mapping, without copying the block into a byte array first. At startup the index is
+// scanned to find every stored block again; a record cut short by a crash is ignored.
+// Old segments can be deleted (pruning): their blocks keep their index record, with the header only.
+// The undo data of a connected block (the outputs it spent) goes to the rev file of its segment
+// (rev00000.dat, ...), so a block can be disconnected without looking at older blocks, also after a
+// restart. A rev record is its length, the block hash and the spent outputs.
+public class BlockStore {
+
+	private static final int INDEX_MAGIC = 0x424C4B49; // "BLKI"
+	private static final byte INDEX_VERSION = 2; // 2: header in each record (version 1 is migrated)
+
+	// Where a block is stored
+	public static class Location {
+		private final int segment;
+		private final int offset;
+		private final int length;
+
+		public Location(int segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public int getSegment() { return segment; }
+		public int getOffset() { return offset; }
+		public int getLength() { return length; }
+	}
+
+	// An index record, in append order
+	public static class Entry {
+		private final String hash;
+		private final Location location;
+		private final Block header;
+		private final boolean pruned; // the segment was deleted, only the header is left
+		private Location undo; // null if the block was never connected
+
+		Entry(String hash, Location location, Block header, boolean pruned) {
+			this.hash = hash;
+			this.location = location;
+			this.header = header;
+			this.pruned = pruned;
+		}
+
+		public String getHash() { return hash; }
+		public Location getLocation() { return location; }
+		public Block getHeader() { return header; }
+		public boolean isPruned() { return pruned; }
+		public Location getUndoLocation() { return undo; }
+	}
+
+	private Path dir;
+	private long segmentMaxBytes;
+
+	private int segment; // segment being appended to
+	private FileChannel writer;
+	private DataOutputStream index;
+	private FileChannel undoWriter;
+	private int undoSegment = -1; // segment of the rev file undoWriter appends to
+	private Map<Integer, MappedByteBuffer> mapped = new HashMap<>();
+
+	public BlockStore(Path dir, long segmentMaxBytes) {
+		this.dir = dir;
+		this.segmentMaxBytes = segmentMaxBytes;
+	}
+
+	// Read the index and open the store for appending. Returns the stored blocks in append order,
+	// which is parents before children.
+	public synchronized List<Entry> open() throws IOException {
+		Files.createDirectories(dir);
+		List<Entry> entries = readIndex();
+		mapped.clear(); // a version 1 index maps segments, the last one may be truncated below
+		if (!entries.isEmpty()) segment = entries.get(entries.size() - 1).getLocation().getSegment();
+
+		writer = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		// Anything after the last indexed block was written before a crash and is not referenced
+		long end = 0;
+		for (Entry e : entries) {
+			if (e.getLocation().getSegment() == segment) end = e.getLocation().getOffset() + e.getLocation().getLength();
+		}
+		writer.truncate(end);
+		writer.position(end);
+
+		rewriteIndex(entries);
+
+		Map<String, Location> undo = readUndo(firstSegment());
+		for (Entry e : entries) {
+			if (!e.isPruned()) e.undo = undo.get(e.getHash());
+		}
+		return entries;
+	}
+
+	// The store could not be opened (unknown or damaged index): move the directory aside, so nothing
+	// is lost, and open an empty store in its place
+	public synchronized List<Entry> openFresh() throws IOException {
+		close();
+		if (Files.exists(dir)) {
+			Files.move(dir, dir.resolveSibling(dir.getFileName() + ".old-" + System.currentTimeMillis()));
+		}
+		return open();
+	}
+
+	private int firstSegment() throws IOException {
+		int first = Integer.MAX_VALUE;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "blk*.dat")) {
+			for (Path f : files) first = Math.min(first, segmentNumber(f));
+		}
+		return first;
+	}
+
+	private static int segmentNumber(Path file) {
+		String name = file.getFileName().toString();
+		return Integer.parseInt(name.substring(3, name.length() - 4));
+	}
+
+	// Scan the rev files for the undo records, cutting off a record left incomplete by a crash. Rev
+	// files of deleted segments are removed too. The last record of a block wins.
+	private Map<String, Location> readUndo(int first) throws IOException {
+		Map<String, Location> undo = new HashMap<>();
+		List<Path> revs = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "rev*.dat")) {
+			for (Path f : files) revs.add(f);
+		}
+		for (Path rev : revs) {
+			int seg = segmentNumber(rev);
+			if (seg < first) {
+				Files.delete(rev);
+				continue;
+			}
+
+			long size = Files.size(rev);
+			int end = 0;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(rev)))) {
+				while (end + 4 <= size) {
+					int length = in.readInt();
+					if (length < 0 || end + 4L + length > size) break;
+					byte[] record = new byte[length];
+					in.readFully(record);
+					String hash = new DataInputStream(new ByteArrayInputStream(record)).readUTF();
+					undo.put(hash, new Location(seg, end + 4, length));
+					end += 4 + length;
+				}
+			}
+			if (end < size) {
+				try (FileChannel ch = FileChannel.open(rev, StandardOpenOption.WRITE)) {
+					ch.truncate(end);
+				}
+			}
+		}
+		return undo;
+	}
+
+	private List<Entry> readIndex() throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		Path file = dir.resolve("index.dat");
+		if (!Files.exists(file)) return entries;
+
+		// Segments below the first one still on disk were pruned
+		int first = firstSegment();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			byte version = 0;
+			if (in.readInt() != INDEX_MAGIC || ((version = in.readByte()) != 1 && version != INDEX_VERSION)) {
+				throw new IOException("Unknown block index format");
+			}
+			while (true) {
+				String hash = in.readUTF();
+				Location loc = new Location(in.readInt(), in.readInt(), in.readInt());
+				byte[] header = null;
+				if (version >= 2) {
+					header = new byte[in.readInt()];
+					in.readFully(header);
+				}
+				boolean pruned = loc.getSegment() < first;
+				if (!pruned) {
+					Path seg = segmentFile(loc.getSegment());
+					if (!Files.exists(seg) || Files.size(seg) < (long) loc.getOffset() + loc.getLength()) break;
+				}
+				// A version 1 record has no header: it is taken from the block once, then the
+				// index is rewritten in the current version
+				Block h = header != null ? WireCodec.decodeHeaders(header).get(0) : read(loc).toHeader();
+				entries.add(new Entry(hash, loc, h, pruned));
+			}
+		} catch (EOFException e) {
+			// end of the index, possibly a record cut short
+		}
+		return entries;
+	}
+
+	// Start the index again from the records that survived, dropping a truncated tail
+	private void rewriteIndex(List<Entry> entries) throws IOException {
+		Path file = dir.resolve("index.dat");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeByte(INDEX_VERSION);
+			for (Entry e : entries) writeEntry(out, e.getHash(), e.getLocation(), e.getHeader());
+		}
+		index = new DataOutputStream(new BufferedOutputStream(
+				Files.newOutputStream(file, StandardOpenOption.APPEND)));
+	}
+
+	private static void writeEntry(DataOutputStream out, String hash, Location loc, Block header) throws IOException {
+		out.writeUTF(hash);
+		out.writeInt(loc.getSegment());
+		out.writeInt(loc.getOffset());
+		out.writeInt(loc.getLength());
+		byte[] data = WireCodec.encodeHeaders(Collections.singletonList(header));
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	public synchronized Location append(Block block) throws IOException {
+		if (writer == null) throw new IOException("Block store is not open");
+		byte[] data = WireCodec.encodeBlock(block);
+		if (writer.position() > 0 && writer.position() + data.length > segmentMaxBytes) {
+			writer.close();
+			segment++;
+			writer = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		Location loc = new Location(segment, (int) writer.position(), data.length);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (buf.hasRemaining()) writer.write(buf);
+
+		// The index record goes after the data, so it never points past the end of a segment
+		writeEntry(index, block.getHashHeaderBlock(), loc, block);
+		index.flush();
+		return loc;
+	}
+
+	public synchronized Block read(Location loc) throws IOException {
+		return WireCodec.decodeBlock(slice(loc));
+	}
+
+	// Record the outputs spent by a block, in the rev file of the segment holding the block
+	public synchronized Location appendUndo(int blockSegment, String hash, List<UtxoSet.SpentOutput> spent)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0); // length, filled in below
+		out.writeUTF(hash);
+		out.writeInt(spent.size());
+		for (UtxoSet.SpentOutput s : spent) {
+			out.writeUTF(s.getTxId());
+			out.writeInt(s.getIndex());
+			out.writeBoolean(s.getOutput() != null);
+			if (s.getOutput() != null) {
+				out.writeDouble(s.getOutput().getValue());
+				out.writeUTF(s.getOutput().getScriptPubKey());
+			}
+		}
+		ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+		buf.putInt(0, buf.capacity() - 4);
+
+		if (undoWriter == null || undoSegment != blockSegment) {
+			if (undoWriter != null) undoWriter.close();
+			undoWriter = FileChannel.open(revFile(blockSegment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			undoWriter.position(undoWriter.size());
+			undoSegment = blockSegment;
+		}
+		Location loc = new Location(blockSegment, (int) undoWriter.position() + 4, buf.capacity() - 4);
+		while (buf.hasRemaining()) undoWriter.write(buf);
+		return loc;
+	}
+
+	// Spent outputs in the order they were recorded (one per input, in block order)
+	public synchronized List<UtxoSet.SpentOutput> readUndo(Location loc) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(loc.getLength());
+		try (FileChannel ch = FileChannel.open(revFile(loc.getSegment()), StandardOpenOption.READ)) {
+			while (buf.hasRemaining()) {
+				if (ch.read(buf, loc.getOffset() + buf.position()) < 0) throw new EOFException("Undo record cut short");
+			}
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.array()));
+		in.readUTF(); // block hash
+		int count = in.readInt();
+		List<UtxoSet.SpentOutput> spent = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String txId = in.readUTF();
+			int index = in.readInt();
+			TransactionOutput.Output out = null;
+			if (in.readBoolean()) {
+				double value = in.readDouble();
+				out = new TransactionOutput.Output(value, in.readUTF());
+			}
+			spent.add(new UtxoSet.SpentOutput(txId, index, out));
+		}
+		return spent;
+	}
+
+	// View of a stored block inside the mapped segment. A segment still being appended to is mapped
+	// again once it has grown past the previous mapping.
+	private ByteBuffer slice(Location loc) throws IOException {
+		MappedByteBuffer map = mapped.get(loc.getSegment());
+		long end = (long) loc.getOffset() + loc.getLength();
+		if (map == null || map.capacity() < end) {
+			try (FileChannel ch = FileChannel.open(segmentFile(loc.getSegment()), StandardOpenOption.READ)) {
+				if (ch.size() < end) throw new IOException("Block outside of segment " + loc.getSegment());
+				map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			}
+			mapped.put(loc.getSegment(), map);
+		}
+		ByteBuffer view = map.duplicate();
+		view.position(loc.getOffset());
+		view.limit(loc.getOffset() + loc.getLength());
+		return view.slice();
+	}
+
+	// Segment blocks are currently appended to, it is never pruned
+	public synchronized int getCurrentSegment() {
+		return segment;
+	}
+
+	public synchronized void deleteSegment(int n) throws IOException {
+		if (n >= segment) throw new IOException("Segment " + n + " is still in use");
+		mapped.remove(n);
+		if (undoSegment == n) {
+			undoWriter.close();
+			undoWriter = null;
+			undoSegment = -1;
+		}
+		Files.deleteIfExists(segmentFile(n));
+		Files.deleteIfExists(revFile(n));
+	}
+
+	private Path segmentFile(int n) {
+		return dir.resolve(String.format("blk%05d.dat", n));
+	}
+
+	private Path revFile(int n) {
+		return dir.resolve(String.format("rev%05d.dat", n));
+	}
+
+	public synchronized void close() {
+		try {
+			if (index != null) index.close();
+			if (writer != null) writer.close();
+			if (undoWriter != null) undoWriter.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		mapped.clear();
+	}
+
+}
@@ -0,0 +1,170 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Selects the mempool transactions of the next block.
+// Transactions are picked as ancestor packages (a tx plus its unconfirmed parents) ordered by
+// package fee rate, so a child is never included without its parents and a high-fee child can
+// pull a low-fee parent in (child pays for parent). The ancestor score index is kept up to date
+// by the Mempool itself, so building a template only walks it once.
+public class BlockTemplateBuilder {
+
+	// Stop after this many packages in a row did not fit, once the block is almost full
+	private static final int MAX_CONSECUTIVE_FAILURES = 1000;
+	private static final int NEARLY_FULL_MARGIN = 400;
+
+	// Space kept free for the block header and the coinbase transaction
+	public static final int COINBASE_RESERVE = Block.HEADER_SIZE + 200;
+
+	private int maxSize;
+	private int maxSigOps;
+	private long maxBuildMillis;
+
+	private double totalFees;
+	private int totalSize;
+	private int totalSigOps;
+
+	// maxBlockSize / maxSigOps are the limits of the whole block, coinbase included
+	public BlockTemplateBuilder(int maxBlockSize, int maxSigOps, long maxBuildMillis) {
+		this.maxSize = maxBlockSize - COINBASE_RESERVE;
+		this.maxSigOps = maxSigOps;
+		this.maxBuildMillis = maxBuildMillis;
+	}
+
+	// Ancestor aggregates of a mempool entry once some of its ancestors are already in the block
+	private static class Modified {
+		final Mempool.Entry entry;
+		double ancestorFee;
+		int ancestorSize;
+		int ancestorCount;
+
+		Modified(Mempool.Entry entry) {
+			this.entry = entry;
+			this.ancestorFee = entry.getAncestorFee();
+			this.ancestorSize = entry.getAncestorSize();
+			this.ancestorCount = entry.getAncestorCount();
+		}
+
+		double feeRate() {
+			return ancestorSize == 0 ? 0 : ancestorFee / ancestorSize;
+		}
+	}
+
+	public List<Transaction> build(Mempool mempool) {
+		long deadline = System.currentTimeMillis() + maxBuildMillis;
+		totalFees = 0.0;
+		totalSize = 0;
+		totalSigOps = 0;
+
+		List<Transaction> selected = new ArrayList<>();
+		Set<Mempool.Entry> inBlock = new HashSet<>();
+		Set<Mempool.Entry> failed = new HashSet<>();
+		Map<Mempool.Entry, Modified> modified = new HashMap<>();
+		TreeSet<Modified> modifiedQueue = new TreeSet<>((a, b) -> {
+			int c = Double.compare(b.feeRate(), a.feeRate());
+			return c != 0 ? c : Mempool.ANCESTOR_SCORE.compare(a.entry, b.entry);
+		});
+
+		Iterator<Mempool.Entry> it = mempool.byAncestorScore().iterator();
+		Mempool.Entry next = null;
+		int consecutiveFailures = 0;
+
+		while (true) {
+			if (System.currentTimeMillis() > deadline) break;
+
+			// Advance the main index past entries that are already handled
+			if (next != null && (inBlock.contains(next) || modified.containsKey(next))) next = null;
+			while (next == null && it.hasNext()) {
+				Mempool.Entry e = it.next();
+				if (!inBlock.contains(e) && !failed.contains(e) && !modified.containsKey(e)) next = e;
+			}
+
+			// Pick the better of the next unmodified entry and the best modified one
+			Mempool.Entry candidate;
+			int packageSize;
+			Modified best = modifiedQueue.isEmpty() ? null : modifiedQueue.first();
+			if (best != null && (next == null || best.feeRate() >= next.getAncestorFeeRate())) {
+				modifiedQueue.remove(best);
+				candidate = best.entry;
+				packageSize = best.ancestorSize;
+			} else if (next != null) {
+				candidate = next;
+				next = null;
+				packageSize = candidate.getAncestorSize();
+			} else {
+				break;
+			}
+
+			// Collect the package: the candidate and its ancestors not yet in the block
+			List<Mempool.Entry> pkg = new ArrayList<>();
+			for (Mempool.Entry a : mempool.getAncestors(candidate)) {
+				if (!inBlock.contains(a)) pkg.add(a);
+			}
+			pkg.add(candidate);
+
+			int packageSigOps = 0;
+			for (Mempool.Entry e : pkg) packageSigOps += e.getSigOps();
+
+			if (totalSize + packageSize > maxSize || totalSigOps + packageSigOps > maxSigOps) {
+				failed.add(candidate);
+				modified.remove(candidate);
+				consecutiveFailures++;
+				if (consecutiveFailures > MAX_CONSECUTIVE_FAILURES && totalSize > maxSize - NEARLY_FULL_MARGIN) break;
+				continue;
+			}
+			consecutiveFailures = 0;
+
+			// Parents before children: an ancestor always has fewer ancestors than its descendants
+			pkg.sort((a, b) -> Integer.compare(a.getAncestorCount(), b.getAncestorCount()));
+			for (Mempool.Entry e : pkg) {
+				selected.add(e.getTx());
+				inBlock.add(e);
+				Modified m = modified.remove(e);
+				if (m != null) modifiedQueue.remove(m);
+				totalFees += e.getFee();
+				totalSize += e.getSize();
+				totalSigOps += e.getSigOps();
+			}
+
+			// Descendants of the added package now have fewer unconfirmed ancestors to pay for
+			for (Mempool.Entry e : pkg) {
+				for (Mempool.Entry desc : mempool.getDescendants(e)) {
+					if (inBlock.contains(desc) || failed.contains(desc)) continue;
+					Modified m = modified.get(desc);
+					if (m == null) {
+						m = new Modified(desc);
+						modified.put(desc, m);
+					} else {
+						modifiedQueue.remove(m);
+					}
+					m.ancestorFee -= e.getFee();
+					m.ancestorSize -= e.getSize();
+					m.ancestorCount--;
+					modifiedQueue.add(m);
+				}
+			}
+		}
+
+		return selected;
+	}
+
+	public double getTotalFees() {
+		return totalFees;
+	}
+
+	public int getTotalSize() {
+		return totalSize;
+	}
+
+	public int getTotalSigOps() {
+		return totalSigOps;
+	}
+
+}
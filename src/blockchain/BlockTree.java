@@ -0,0 +1,271 @@
+package blockchain;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Every valid block the node has seen, indexed by header hash, with its parent link.
+// Side branches are kept, so when one of them ends up with more cumulative proof of work than the
+// active chain the node can switch to it (reorganisation). The active chain is the path from the
+// tip back to its root.
+// Nodes keep the header only: a body is written to the block store when the block is added, stays
+// in memory until the block is connected, and is read back from the store when needed again.
+// Bodies of pruned store segments are gone for good, their nodes keep the header.
+// The undo data of a connected block is written next to it in the store as well, and read back when
+// the block is disconnected.
+public class BlockTree {
+
+	public static class Node {
+		private final Block header;
+		private final Node parent; // null for a first block
+		private final int height;
+		private final BigInteger chainWork;
+		private Block body; // null once released, then read from location
+		private BlockStore.Location location; // null if the block could not be stored, or was pruned
+		private List<UtxoSet.SpentOutput> undo; // outputs spent by the block, if they could not be stored
+		private BlockStore.Location undoLocation; // null if the block was never connected, or was pruned
+
+		Node(Block header, Node parent) {
+			this.header = header;
+			this.parent = parent;
+			this.height = parent == null ? 0 : parent.height + 1;
+			this.chainWork = (parent == null ? BigInteger.ZERO : parent.chainWork).add(work(header));
+		}
+
+		public Block getHeader() { return header; }
+		public Node getParent() { return parent; }
+		public int getHeight() { return height; }
+		public BigInteger getChainWork() { return chainWork; }
+		public String getHash() { return header.getHashHeaderBlock(); }
+		public BlockStore.Location getLocation() { return location; }
+		public BlockStore.Location getUndoLocation() { return undoLocation; }
+	}
+
+	private Map<String, Node> nodes = new HashMap<>();
+	private Set<String> invalid = new HashSet<>(); // blocks that failed validation, and their descendants
+	private Node tip; // end of the active chain
+	private Node best; // most cumulative work among all known blocks
+	private BlockStore store;
+	private TreeMap<Integer, List<Node>> bySegment = new TreeMap<>(); // store segment -> blocks in it
+
+	public BlockTree(BlockStore store) {
+		this.store = store;
+	}
+
+	// Expected number of hashes to find a block: its hash needs target leading hex zeros
+	public static BigInteger work(Block block) {
+		return BigInteger.ONE.shiftLeft(4 * Math.max(0, block.getTarget()));
+	}
+
+	// Add a block whose parent is known and write it to the store. Only a genesis block can be the
+	// root, and only of an empty tree. Returns null if the parent is unknown (the block cannot be
+	// placed yet).
+	public Node add(Block block) {
+		Node existing = nodes.get(block.getHashHeaderBlock());
+		if (existing != null) return existing;
+
+		Node parent = nodes.get(block.getHashPrevBlock());
+		if (parent == null && !canBeRoot(block)) return null;
+
+		Node node = insert(block.toHeader(), parent);
+		node.body = block;
+		try {
+			setLocation(node, store.append(block));
+		} catch (IOException e) {
+			e.printStackTrace(); // the body stays in memory
+		}
+		return node;
+	}
+
+	// Add a block found in the store at startup, its body stays on disk (location is null if pruned,
+	// undoLocation if the block was never connected)
+	public Node addStored(Block header, BlockStore.Location location, BlockStore.Location undoLocation) {
+		Node parent = nodes.get(header.getHashPrevBlock());
+		if (parent == null && !canBeRoot(header)) return null;
+		if (nodes.containsKey(header.getHashHeaderBlock())) return nodes.get(header.getHashHeaderBlock());
+
+		Node node = insert(header, parent);
+		if (location != null) {
+			setLocation(node, location);
+			node.undoLocation = undoLocation;
+		}
+		return node;
+	}
+
+	// A block in the middle of a chain must not become the root: the real chain could never attach
+	private boolean canBeRoot(Block block) {
+		return nodes.isEmpty() && block.isGenesis();
+	}
+
+	private void setLocation(Node node, BlockStore.Location location) {
+		node.location = location;
+		bySegment.computeIfAbsent(location.getSegment(), k -> new ArrayList<>()).add(node);
+	}
+
+	private Node insert(Block header, Node parent) {
+		Node node = new Node(header, parent);
+		nodes.put(node.getHash(), node);
+		// On equal work the block seen first stays the best
+		if (best == null || node.chainWork.compareTo(best.chainWork) > 0) best = node;
+		return node;
+	}
+
+	// Full block, from memory or from the store. Null if the block was pruned.
+	public Block getBlock(Node node) {
+		if (node.body != null) return node.body;
+		if (node.location == null) return null;
+		try {
+			return store.read(node.location);
+		} catch (IOException e) {
+			throw new IllegalStateException("Block " + node.getHash() + " cannot be read from the store", e);
+		}
+	}
+
+	// Record the outputs spent by a block being connected. They only depend on the block and its
+	// parent, so undo data already stored (the block was connected before) is kept.
+	public void setUndo(Node node, List<UtxoSet.SpentOutput> undo) {
+		if (node.undoLocation != null) return;
+		node.undo = undo;
+		if (node.location == null) return;
+		try {
+			node.undoLocation = store.appendUndo(node.location.getSegment(), node.getHash(), undo);
+			node.undo = null;
+		} catch (IOException e) {
+			e.printStackTrace(); // the undo data stays in memory
+		}
+	}
+
+	// Outputs spent by the block, null if it cannot be disconnected (never connected or pruned)
+	public List<UtxoSet.SpentOutput> getUndo(Node node) {
+		if (node.undo != null) return node.undo;
+		if (node.undoLocation == null) return null;
+		try {
+			return store.readUndo(node.undoLocation);
+		} catch (IOException e) {
+			throw new IllegalStateException("Undo data of block " + node.getHash() + " cannot be read", e);
+		}
+	}
+
+	public boolean hasUndo(Node node) {
+		return node.undo != null || node.undoLocation != null;
+	}
+
+	// The block will not be disconnected any more (it is deep enough to be pruned)
+	public void forgetUndo(Node node) {
+		node.undo = null;
+		node.undoLocation = null;
+	}
+
+	// Drop the body from memory if it is safely in the store
+	public void releaseBody(Node node) {
+		if (node.location != null) node.body = null;
+	}
+
+	public boolean isPruned(Node node) {
+		return node.body == null && node.location == null;
+	}
+
+	// Store segments holding blocks, oldest first
+	public List<Integer> getSegments() {
+		return new ArrayList<>(bySegment.keySet());
+	}
+
+	// Greatest height of the blocks stored in a segment, -1 if none
+	public int getMaxHeight(int segment) {
+		int max = -1;
+		for (Node n : bySegment.getOrDefault(segment, Collections.emptyList())) max = Math.max(max, n.height);
+		return max;
+	}
+
+	// The segment is about to be deleted: its blocks keep only their header
+	public void pruneSegment(int segment) {
+		List<Node> pruned = bySegment.remove(segment);
+		if (pruned == null) return;
+		for (Node n : pruned) {
+			n.location = null;
+			n.body = null;
+			n.undo = null;
+			n.undoLocation = null;
+		}
+	}
+
+	public Node get(String hash) {
+		return nodes.get(hash);
+	}
+
+	public boolean contains(String hash) {
+		return nodes.containsKey(hash);
+	}
+
+	public Node getTip() {
+		return tip;
+	}
+
+	public void setTip(Node tip) {
+		this.tip = tip;
+	}
+
+	public Node getBest() {
+		return best;
+	}
+
+	public boolean isInvalid(String hash) {
+		return invalid.contains(hash);
+	}
+
+	// Forget a block that failed validation when it was connected, with every block built on it, and
+	// pick the best of the remaining blocks. Scans the tree, but only runs for invalid blocks.
+	public void removeBranch(Node bad) {
+		List<Node> removed = new ArrayList<>();
+		for (Node n : nodes.values()) {
+			Node a = n;
+			while (a != null && a.height > bad.height) a = a.parent;
+			if (a == bad) removed.add(n);
+		}
+		for (Node n : removed) {
+			nodes.remove(n.getHash());
+			invalid.add(n.getHash());
+		}
+
+		best = tip;
+		for (Node n : nodes.values()) {
+			if (best == null || n.chainWork.compareTo(best.chainWork) > 0) best = n;
+		}
+	}
+
+	// Last common block of two branches, or null if they do not share a root.
+	// Walks back at most the length of the branches, not the whole chain.
+	public static Node findFork(Node a, Node b) {
+		while (a != null && b != null && a != b) {
+			if (a.height > b.height) {
+				a = a.parent;
+			} else if (b.height > a.height) {
+				b = b.parent;
+			} else {
+				a = a.parent;
+				b = b.parent;
+			}
+		}
+		return a == b ? a : null;
+	}
+
+	// Blocks after fork up to and including to, oldest first (fork may be null: from the root)
+	public static List<Node> pathFrom(Node fork, Node to) {
+		List<Node> path = new ArrayList<>();
+		for (Node n = to; n != null && n != fork; n = n.parent) path.add(n);
+		Collections.reverse(path);
+		return path;
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+
+}
@@ -0,0 +1,227 @@
+package blockchain;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Contextual validation of a block against the UTXO set of its parent, before it is connected.
+// One pass over the block checks that the first transaction (and only it) is a coinbase, that every
+// input spends an output that exists and is unspent (in the UTXO set or created earlier in the same
+// block), that no outpoint is spent twice, that no transaction creates value, and that the coinbase
+// claims at most the subsidy plus the fees. Signatures are the expensive part: they do not depend on
+// the other transactions, so they are verified in parallel on a worker pool. They can be skipped for
+// blocks trusted through an assume-valid checkpoint.
+public class BlockValidator {
+
+	static final double EPSILON = 1e-9; // values are doubles
+
+	// Initial balance handed out by the system, once per address
+	public static final double SYSTEM_GRANT = 10.0;
+
+	private ExecutorService workers;
+	private volatile double signatureMicros; // 0 until measured
+
+	public BlockValidator(int threads) {
+		workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread t = new Thread(r, "block-validator");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	// Reason the block is invalid, or null if it is valid. utxos and funded (addresses that already
+	// got their SYSTEM grant on the chain) are only read.
+	public String validate(Block block, UtxoSet utxos, Set<String> funded, double subsidy, boolean checkSignatures) {
+		List<Transaction> txs = block.getTransactions();
+		if (txs.isEmpty() || !isCoinbase(txs.get(0))) return "first transaction is not a coinbase";
+
+		Map<String, TransactionOutput.Output> created = new HashMap<>(); // outputs of earlier transactions
+		Set<String> spent = new HashSet<>();
+		Set<String> granted = new HashSet<>();
+		List<Future<Boolean>> signatureChecks = new ArrayList<>();
+		double fees = 0;
+
+		for (int i = 1; i < txs.size(); i++) {
+			Transaction tx = txs.get(i);
+			if (isCoinbase(tx)) return "more than one coinbase";
+
+			List<TransactionInput.Input> inputs = tx.getTxInput().getInputList();
+			double in = 0;
+			if (inputs.isEmpty()) {
+				// The initial balances handed out by the system are the only other way to create coins
+				if (!"SYSTEM".equals(tx.getSenderHash())) return "transaction " + tx.getId() + " has no inputs";
+				String address = grantAddress(tx);
+				if (address == null) return "SYSTEM transaction " + tx.getId() + " is not a grant of " + SYSTEM_GRANT;
+				if (funded.contains(address) || !granted.add(address)) return "address " + address + " already funded";
+			}
+
+			List<TransactionOutput.Output> spentOutputs = new ArrayList<>();
+			for (TransactionInput.Input input : inputs) {
+				String key = UtxoSet.key(input.getPrevTxId(), input.getIndex());
+				if (!spent.add(key)) return "double spend of " + key + " inside the block";
+
+				TransactionOutput.Output out = created.remove(key);
+				if (out == null) out = utxos.get(input.getPrevTxId(), input.getIndex());
+				if (out == null) return "transaction " + tx.getId() + " spends missing or spent output " + key;
+				spentOutputs.add(out);
+				in += out.getValue();
+			}
+
+			double out = totalOutput(tx);
+			if (Double.isNaN(out)) return "transaction " + tx.getId() + " has a negative or invalid output";
+			if (!inputs.isEmpty()) {
+				if (out > in + EPSILON) return "transaction " + tx.getId() + " spends more than its inputs";
+				fees += in - out;
+			}
+
+			List<TransactionOutput.Output> outs = tx.getTxOutput().getOutputList();
+			for (int j = 0; j < outs.size(); j++) created.put(UtxoSet.key(tx.getId(), j), outs.get(j));
+
+			if (checkSignatures && !inputs.isEmpty()) signatureChecks.add(workers.submit(() -> verifyInputs(tx, spentOutputs)));
+		}
+
+		double claimed = totalOutput(txs.get(0));
+		if (Double.isNaN(claimed)) return "coinbase has a negative or invalid output";
+		if (claimed > subsidy + fees + EPSILON) return "coinbase claims " + claimed + ", more than " + (subsidy + fees);
+
+		String result = null;
+		for (int i = 0; i < signatureChecks.size(); i++) {
+			try {
+				if (result == null && !signatureChecks.get(i).get()) result = "invalid signature";
+			} catch (Exception e) {
+				result = "signature check failed: " + e.getMessage();
+			}
+		}
+		return result;
+	}
+
+	// Measure the average time of one signature check on a worker (to report the time saved by
+	// skipping them), so the key generation does not hold up the caller
+	// Signature checks of loose transactions (the saved MemPool) on the workers. done gets the results,
+	// in order, on the worker finishing last.
+	public void verifySignatures(List<Transaction> txs, Consumer<List<Boolean>> done) {
+		if (txs.isEmpty()) {
+			done.accept(new ArrayList<>());
+			return;
+		}
+		Boolean[] results = new Boolean[txs.size()];
+		AtomicInteger remaining = new AtomicInteger(txs.size());
+		for (int i = 0; i < txs.size(); i++) {
+			int index = i;
+			workers.execute(() -> {
+				try {
+					results[index] = verifySignatures(txs.get(index));
+				} catch (Exception e) {
+					results[index] = false;
+				}
+				if (remaining.decrementAndGet() == 0) done.accept(Arrays.asList(results));
+			});
+		}
+	}
+
+	public void startSignatureBenchmark() {
+		workers.execute(() -> signatureMicros = measureSignatureMicros());
+	}
+
+	public double getSignatureMicros() {
+		return signatureMicros;
+	}
+
+	// Average time of one signature check, measured on a throwaway key
+	private static double measureSignatureMicros() {
+		try {
+			KeyPair keys = CryptoUtils.generateKeyPair();
+			String digest = CryptoUtils.hashData("calibration");
+			String sig = CryptoUtils.signData(digest, keys.getPrivate());
+			int rounds = 50;
+			for (int i = 0; i < rounds; i++) CryptoUtils.verifySignature(digest, sig, keys.getPublic()); // warm-up
+			long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) CryptoUtils.verifySignature(digest, sig, keys.getPublic());
+			return (System.nanoTime() - start) / 1000.0 / rounds;
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	// Address paid by a SYSTEM grant (an input-less SYSTEM transaction with a single output of
+	// SYSTEM_GRANT), null if tx is not one
+	public static String grantAddress(Transaction tx) {
+		if (!"SYSTEM".equals(tx.getSenderHash()) || !tx.getTxInput().getInputList().isEmpty()) return null;
+		List<TransactionOutput.Output> outs = tx.getTxOutput().getOutputList();
+		if (outs.size() != 1 || Math.abs(outs.get(0).getValue() - SYSTEM_GRANT) > EPSILON) return null;
+		return outs.get(0).getScriptPubKey();
+	}
+
+	public static boolean isCoinbase(Transaction tx) {
+		return "SYSTEM_COINBASE".equals(tx.getSenderHash()) && tx.getTxInput().getInputList().isEmpty();
+	}
+
+	// Sum of the outputs, NaN if one is negative (or not a number). The MemPool admits transactions
+	// with the same rule.
+	static double totalOutput(Transaction tx) {
+		double total = 0;
+		for (TransactionOutput.Output out : tx.getTxOutput().getOutputList()) {
+			if (!(out.getValue() >= 0) || Double.isInfinite(out.getValue())) return Double.NaN;
+			total += out.getValue();
+		}
+		return total;
+	}
+
+	// Every input carries a valid signature, made with the key of the address it spends from.
+	// The MemPool admits transactions with the same two checks.
+	private static boolean verifyInputs(Transaction tx, List<TransactionOutput.Output> spentOutputs) {
+		return isSignedByOwners(tx, spentOutputs) && verifySignatures(tx);
+	}
+
+	// Every input is signed, and all its signatures are valid. Needs no state, so it can run on any thread.
+	public static boolean verifySignatures(Transaction tx) {
+		try {
+			for (TransactionInput.Input in : tx.getTxInput().getInputList()) {
+				if (in.getScriptSig() == null || in.getScriptSig().isEmpty()) return false;
+				String digest = CryptoUtils.hashData(tx.getSigningData(in));
+				for (Map.Entry<PublicKey, String> e : in.getScriptSig().entrySet()) {
+					if (!CryptoUtils.verifySignature(digest, e.getValue(), e.getKey())) return false;
+				}
+			}
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	// One of the keys signing each input hashes to the address of the output it spends (spentOutputs
+	// in input order). Cheap: no signature is checked.
+	public static boolean isSignedByOwners(Transaction tx, List<TransactionOutput.Output> spentOutputs) {
+		try {
+			List<TransactionInput.Input> inputs = tx.getTxInput().getInputList();
+			for (int i = 0; i < inputs.size(); i++) {
+				TransactionInput.Input in = inputs.get(i);
+				if (in.getScriptSig() == null) return false;
+				boolean owner = false;
+				for (PublicKey key : in.getScriptSig().keySet()) {
+					if (CryptoUtils.addressOf(key).equals(spentOutputs.get(i).getScriptPubKey())) owner = true;
+				}
+				if (!owner) return false;
+			}
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+
+}
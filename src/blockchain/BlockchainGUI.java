@@ -89,7 +89,7 @@ public class BlockchainGUI extends JFrame {
     public Object[] createTransactionDialog(List<String> recipients) {
 
         JPanel panel = new JPanel();
-        panel.setLayout(new GridLayout(2, 2, 10, 10));
+        panel.setLayout(new GridLayout(3, 2, 10, 10));
 
         JLabel amountLabel = new JLabel("Amount:");
         JTextField amountField = new JTextField();
@@ -97,6 +97,9 @@ public class BlockchainGUI extends JFrame {
         JLabel recipientLabel = new JLabel("Recipient:");
         JComboBox<String> recipientBox = new JComboBox<>();
 
+        JLabel feeLabel = new JLabel("Fee (optional):");
+        JTextField feeField = new JTextField("0");
+
         for (String r : recipients) {
             recipientBox.addItem(r);
         }
@@ -105,6 +108,8 @@ public class BlockchainGUI extends JFrame {
         panel.add(amountField);
         panel.add(recipientLabel);
         panel.add(recipientBox);
+        panel.add(feeLabel);
+        panel.add(feeField);
 
         int result = JOptionPane.showConfirmDialog(
                 null,
@@ -117,7 +122,8 @@ public class BlockchainGUI extends JFrame {
         if (result == JOptionPane.OK_OPTION) {
             return new Object[] {
                 amountField.getText(),
-                recipientBox.getSelectedItem()
+                recipientBox.getSelectedItem(),
+                feeField.getText()
             };
         }
 
@@ -275,7 +281,13 @@ public class BlockchainGUI extends JFrame {
         return null;
     }
     
+    // Called from the agent thread too: the dialog is then shown on the Swing thread, without
+    // holding the agent until it is closed
     public void displayResult(String message, boolean valid) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> displayResult(message, valid));
+            return;
+        }
         int messageType = valid ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.ERROR_MESSAGE;
 
         JOptionPane.showMessageDialog(
@@ -405,13 +417,13 @@ public class BlockchainGUI extends JFrame {
             	}
             	
             	switch (label) {
-	                case "Create Transaction" -> agent.createTransaction();
-	                case "Send Transaction" -> agent.sendTransaction();
-	                case "Create Block" -> agent.createBlock();
-	                case "Send Block" -> agent.sendBlock();
-	                case "Mine Block" -> agent.mineBlock();
-	                case "Verify Transaction" -> agent.verifyTransaction();
-	                case "Delete Transaction" -> agent.deleteTransaction();
+	                case "Create Transaction" -> agent.runOnAgentThread(agent::createTransaction);
+	                case "Send Transaction" -> agent.runOnAgentThread(agent::sendTransaction);
+	                case "Create Block" -> agent.runOnAgentThread(agent::createBlock);
+	                case "Send Block" -> agent.runOnAgentThread(agent::sendBlock);
+	                case "Mine Block" -> agent.runOnAgentThread(agent::mineBlock);
+	                case "Verify Transaction" -> agent.runOnAgentThread(agent::verifyTransaction);
+	                case "Delete Transaction" -> agent.runOnAgentThread(agent::deleteTransaction);
             	}
             });
             
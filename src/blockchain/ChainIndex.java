@@ -0,0 +1,154 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Index of the active chain, updated when a block is connected or disconnected at the tip:
+// block hash -> (header, height), height -> block hash, and txid -> (block, position in the block).
+// Every lookup is a map or array access instead of a scan of the chain. Only headers are kept, the
+// bodies are in the block store. The addresses paid a SYSTEM grant are kept as well (once per address).
+public class ChainIndex {
+
+	public static class Entry {
+		private final Block header;
+		private final int height;
+
+		Entry(Block header, int height) {
+			this.header = header;
+			this.height = height;
+		}
+
+		public Block getHeader() { return header; }
+		public int getHeight() { return height; }
+	}
+
+	public static class TxLocation {
+		private final String blockHash;
+		private final int position;
+
+		TxLocation(String blockHash, int position) {
+			this.blockHash = blockHash;
+			this.position = position;
+		}
+
+		public String getBlockHash() { return blockHash; }
+		public int getPosition() { return position; }
+	}
+
+	private Map<String, Entry> byHash = new HashMap<>();
+	private List<String> hashes = new ArrayList<>(); // by height
+	private Map<String, TxLocation> txs = new HashMap<>();
+	private Set<String> funded = new HashSet<>();
+
+	// Append a block on top of the tip
+	public void connect(Block block) {
+		String hash = block.getHashHeaderBlock();
+		if (!hashes.isEmpty() && !block.getHashPrevBlock().equals(getTipHash())) {
+			throw new IllegalStateException("Block " + hash + " does not extend the tip");
+		}
+		byHash.put(hash, new Entry(block.toHeader(), hashes.size()));
+		hashes.add(hash);
+		List<Transaction> blockTxs = block.getTransactions();
+		for (int i = 0; i < blockTxs.size(); i++) {
+			txs.put(blockTxs.get(i).getId(), new TxLocation(hash, i));
+			String granted = BlockValidator.grantAddress(blockTxs.get(i));
+			if (granted != null) funded.add(granted);
+		}
+	}
+
+	// Remove the tip block (given in full, for its transaction ids)
+	public void disconnectTip(Block block) {
+		String hash = block.getHashHeaderBlock();
+		if (!hash.equals(getTipHash())) throw new IllegalStateException("Block " + hash + " is not the tip");
+		hashes.remove(hashes.size() - 1);
+		byHash.remove(hash);
+		for (Transaction tx : block.getTransactions()) {
+			TxLocation loc = txs.get(tx.getId());
+			if (loc != null && loc.getBlockHash().equals(hash)) txs.remove(tx.getId());
+			String granted = BlockValidator.grantAddress(tx);
+			if (granted != null) funded.remove(granted);
+		}
+	}
+
+	// Drop the transactions of an old block from the txid index (pruning), the block stays in the chain
+	public void forgetTransactions(Block block) {
+		String hash = block.getHashHeaderBlock();
+		for (Transaction tx : block.getTransactions()) {
+			TxLocation loc = txs.get(tx.getId());
+			if (loc != null && loc.getBlockHash().equals(hash)) txs.remove(tx.getId());
+		}
+	}
+
+	public boolean isEmpty() {
+		return hashes.isEmpty();
+	}
+
+	// Number of blocks, the tip is at height size() - 1
+	public int size() {
+		return hashes.size();
+	}
+
+	public boolean contains(String hash) {
+		return byHash.containsKey(hash);
+	}
+
+	// Null if the block is not on the active chain
+	public Block getHeader(String hash) {
+		Entry e = byHash.get(hash);
+		return e == null ? null : e.getHeader();
+	}
+
+	// -1 if the block is not on the active chain
+	public int heightOf(String hash) {
+		Entry e = byHash.get(hash);
+		return e == null ? -1 : e.getHeight();
+	}
+
+	public String getHash(int height) {
+		return hashes.get(height);
+	}
+
+	public Block getHeader(int height) {
+		return byHash.get(hashes.get(height)).getHeader();
+	}
+
+	public String getTipHash() {
+		return hashes.isEmpty() ? null : hashes.get(hashes.size() - 1);
+	}
+
+	// Headers at heights [from, to)
+	public List<Block> getHeaders(int from, int to) {
+		List<Block> headers = new ArrayList<>(Math.max(0, to - from));
+		for (int h = from; h < to; h++) headers.add(getHeader(h));
+		return headers;
+	}
+
+	public boolean isFunded(String address) {
+		return funded.contains(address);
+	}
+
+	public Set<String> getFunded() {
+		return Collections.unmodifiableSet(funded);
+	}
+
+	// Funded addresses of blocks connected as headers only (restored from a UTXO snapshot)
+	public void addFunded(Collection<String> addresses) {
+		funded.addAll(addresses);
+	}
+
+	public boolean containsTx(String txId) {
+		return txs.containsKey(txId);
+	}
+
+	// Null if the transaction is not confirmed on the active chain
+	public TxLocation getTxLocation(String txId) {
+		return txs.get(txId);
+	}
+
+}
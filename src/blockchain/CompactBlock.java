@@ -0,0 +1,135 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A block relayed as its header, its coinbase and the ids of its other transactions.
+// The receiver rebuilds the block from its own MemPool and only asks the sender for the
+// transactions it is missing (GETBLOCKTXN / BLOCKTXN), instead of downloading every transaction again.
+//
+// Transaction ids in this simulation are already 32-bit random identifiers (8 hex chars, 4 raw bytes
+// on the wire), so they are used directly as short ids.
+public class CompactBlock {
+
+	private Block header; // block without its transaction list
+	private List<Integer> prefilledIndexes = new ArrayList<>();
+	private List<Transaction> prefilled = new ArrayList<>();
+	private List<String> shortIds = new ArrayList<>(); // ids of the remaining transactions, in block order
+
+	// Request for (empty txs) or answer with (txs) the transactions of a block at the given indexes
+	public static class BlockTxns {
+		private final String blockHash;
+		private final List<Integer> indexes;
+		private final List<Transaction> txs;
+
+		public BlockTxns(String blockHash, List<Integer> indexes, List<Transaction> txs) {
+			this.blockHash = blockHash;
+			this.indexes = indexes;
+			this.txs = txs;
+		}
+
+		public String getBlockHash() { return blockHash; }
+		public List<Integer> getIndexes() { return indexes; }
+		public List<Transaction> getTxs() { return txs; }
+	}
+
+	// Slots of the block being reconstructed on the receiving side
+	private Transaction[] slots;
+
+	public CompactBlock(Block header) {
+		this.header = header;
+	}
+
+	// The coinbase (first transaction) is always sent in full: no MemPool can have it
+	public static CompactBlock fromBlock(Block block) {
+		CompactBlock cb = new CompactBlock(block);
+		List<Transaction> txs = block.getTransactions();
+		for (int i = 0; i < txs.size(); i++) {
+			if (i == 0) {
+				cb.prefilledIndexes.add(i);
+				cb.prefilled.add(txs.get(i));
+			} else {
+				cb.shortIds.add(txs.get(i).getId());
+			}
+		}
+		return cb;
+	}
+
+	public Block getHeader() {
+		return header;
+	}
+
+	public List<Integer> getPrefilledIndexes() {
+		return prefilledIndexes;
+	}
+
+	public List<Transaction> getPrefilled() {
+		return prefilled;
+	}
+
+	public List<String> getShortIds() {
+		return shortIds;
+	}
+
+	public int getTransactionCount() {
+		return prefilled.size() + shortIds.size();
+	}
+
+	// Fill the block with the prefilled transactions and the ones found in the MemPool.
+	// Returns the indexes of the transactions still missing.
+	public List<Integer> reconstruct(Mempool mempool) {
+		slots = new Transaction[getTransactionCount()];
+		for (int i = 0; i < prefilledIndexes.size(); i++) {
+			slots[prefilledIndexes.get(i)] = prefilled.get(i);
+		}
+
+		int next = 0;
+		for (String id : shortIds) {
+			while (slots[next] != null) next++;
+			Mempool.Entry entry = mempool.get(id);
+			if (entry != null) slots[next] = entry.getTx();
+			next++;
+		}
+		return getMissingIndexes();
+	}
+
+	public List<Integer> getMissingIndexes() {
+		List<Integer> missing = new ArrayList<>();
+		for (int i = 0; i < slots.length; i++) {
+			if (slots[i] == null) missing.add(i);
+		}
+		return missing;
+	}
+
+	// Add the transactions received for the missing indexes, in the order they were requested
+	public boolean fill(List<Integer> indexes, List<Transaction> txs) {
+		if (indexes.size() != txs.size()) return false;
+		for (int i = 0; i < indexes.size(); i++) {
+			int index = indexes.get(i);
+			if (index < 0 || index >= slots.length) return false;
+			slots[index] = txs.get(i);
+		}
+		return true;
+	}
+
+	public boolean isComplete() {
+		return slots != null && getMissingIndexes().isEmpty();
+	}
+
+	// The full block; its Merkle root still has to be checked by block validation
+	public Block toBlock() {
+		List<Transaction> txs = new ArrayList<>(slots.length);
+		for (Transaction tx : slots) txs.add(tx);
+
+		Block block = new Block(header.getId(), header.getSender(), header.getHashPrevBlock(), header.getTarget());
+		block.setVersion(header.getVersion());
+		block.setTimestamp(header.getTimestamp());
+		block.setNonce(header.getNonce());
+		block.setMerkleRoot(header.getMerkleRoot());
+		block.setHashHeaderBlock(header.getHashHeaderBlock());
+		block.setMiningTime(header.getMiningTime());
+		block.setTransactions(txs);
+		return block;
+	}
+
+}
@@ -0,0 +1,148 @@
+package blockchain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+// Optional compression of large message payloads.
+// A compressed message names its codec in an ACL parameter, so the receiver knows how to read it and
+// uncompressed messages keep working. Codecs are looked up by name; others can be registered.
+public class Compression {
+
+	// Refuse payloads that would decompress to more than this (compression bombs)
+	public static final int MAX_DECOMPRESSED_SIZE = 64 * 1024 * 1024;
+
+	public interface Codec {
+		String getName();
+		byte[] compress(byte[] data) throws IOException;
+		byte[] decompress(byte[] data, int maxSize) throws IOException;
+	}
+
+	private static final Map<String, Codec> codecs = new ConcurrentHashMap<>();
+
+	static {
+		register(new DeflateCodec("deflate", Deflater.DEFAULT_COMPRESSION));
+		register(new DeflateCodec("deflate-fast", Deflater.BEST_SPEED));
+		register(new GzipCodec());
+	}
+
+	private Compression() {}
+
+	public static void register(Codec codec) {
+		codecs.put(codec.getName(), codec);
+	}
+
+	public static Set<String> getNames() {
+		return new TreeSet<>(codecs.keySet());
+	}
+
+	// Null for "none" or an unknown name
+	public static Codec get(String name) {
+		return name == null ? null : codecs.get(name);
+	}
+
+	public static byte[] decompress(String name, byte[] data) throws IOException {
+		Codec codec = get(name);
+		if (codec == null) throw new IOException("Unknown compression " + name);
+		return codec.decompress(data, MAX_DECOMPRESSED_SIZE);
+	}
+
+	// Raw deflate (JDK Deflater/Inflater), the baseline
+	public static class DeflateCodec implements Codec {
+		private final String name;
+		private final int level;
+
+		public DeflateCodec(String name, int level) {
+			this.name = name;
+			this.level = level;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public byte[] compress(byte[] data) {
+			Deflater deflater = new Deflater(level, true);
+			try {
+				deflater.setInput(data);
+				deflater.finish();
+				ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+				byte[] buf = new byte[8192];
+				while (!deflater.finished()) {
+					int n = deflater.deflate(buf);
+					out.write(buf, 0, n);
+				}
+				return out.toByteArray();
+			} finally {
+				deflater.end();
+			}
+		}
+
+		@Override
+		public byte[] decompress(byte[] data, int maxSize) throws IOException {
+			Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(data);
+				ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+				byte[] buf = new byte[8192];
+				while (!inflater.finished()) {
+					int n = inflater.inflate(buf);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						throw new IOException("Truncated compressed payload");
+					}
+					out.write(buf, 0, n);
+					if (out.size() > maxSize) throw new IOException("Decompressed payload too large");
+				}
+				return out.toByteArray();
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupted compressed payload", e);
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+
+	// GZIP streams, same algorithm with a header and a checksum
+	public static class GzipCodec implements Codec {
+		@Override
+		public String getName() {
+			return "gzip";
+		}
+
+		@Override
+		public byte[] compress(byte[] data) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+			try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+				gz.write(data);
+			}
+			return out.toByteArray();
+		}
+
+		@Override
+		public byte[] decompress(byte[] data, int maxSize) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+			try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+				byte[] buf = new byte[8192];
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					out.write(buf, 0, n);
+					if (out.size() > maxSize) throw new IOException("Decompressed payload too large");
+				}
+			}
+			return out.toByteArray();
+		}
+	}
+
+}
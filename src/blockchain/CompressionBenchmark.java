@@ -0,0 +1,57 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// CPU cost versus bytes saved of each compression codec, on the payloads that get compressed:
+// a full block and a TRANSACTIONS batch, both in WireCodec format.
+// Usage: java blockchain.CompressionBenchmark [transactions per block] [iterations]
+public class CompressionBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int txCount = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+		Block block = WireCodecBenchmark.sampleBlock(txCount);
+		byte[] blockBytes = WireCodec.encodeBlock(block);
+		byte[] batchBytes = WireCodec.encodeTransactions(
+				new ArrayList<>(block.getTransactions().subList(1, Math.min(201, block.getTransactions().size()))));
+
+		List<String> names = new ArrayList<>();
+		names.add("deflate-fast");
+		names.add("deflate");
+		names.add("gzip");
+
+		System.out.println("Block with " + txCount + " transactions, " + iterations + " iterations");
+		System.out.printf("%-26s %10s %8s %14s %14s%n", "", "bytes", "ratio", "compress MB/s", "expand MB/s");
+		for (String name : names) {
+			report("Block (" + name + ")", Compression.get(name), blockBytes, iterations);
+			report("Batch (" + name + ")", Compression.get(name), batchBytes, iterations);
+		}
+	}
+
+	private static void report(String label, Compression.Codec codec, byte[] data, int iterations) throws Exception {
+		byte[] compressed = codec.compress(data);
+		byte[] restored = codec.decompress(compressed, Compression.MAX_DECOMPRESSED_SIZE);
+		if (!Arrays.equals(data, restored)) {
+			throw new IllegalStateException(codec.getName() + " round trip changed the payload");
+		}
+
+		// Warm-up so the JIT has compiled both paths before timing
+		for (int i = 0; i < iterations; i++) codec.decompress(codec.compress(data), Compression.MAX_DECOMPRESSED_SIZE);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) codec.compress(data);
+		double compressSeconds = (System.nanoTime() - start) / 1e9;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) codec.decompress(compressed, Compression.MAX_DECOMPRESSED_SIZE);
+		double expandSeconds = (System.nanoTime() - start) / 1e9;
+
+		double mb = (double) data.length * iterations / (1024 * 1024);
+		System.out.printf("%-26s %10d %8.2f %14.1f %14.1f%n", label, compressed.length,
+				(double) data.length / compressed.length, mb / compressSeconds, mb / expandSeconds);
+	}
+
+}
@@ -1,6 +1,12 @@
 package blockchain;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.*;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
 
 public class CryptoUtils {
@@ -32,10 +38,38 @@ public class CryptoUtils {
 		return sb.toString();
 	}
 	
+	// Address of a public key, the hash its outputs are paid to.
+	/* NOTE: In real Bitcoin, the function used for hashing the public key is RIPEMD160(sha256(pk)))
+	         However, in our simulation, we used sha256(sha256(pk))) for simplification */
+	public static String addressOf(PublicKey publicKey) throws Exception {
+		String pubKeyStr = Base64.getEncoder().encodeToString(publicKey.getEncoded());
+		return hashData(hashData(pubKeyStr)).substring(0, 40);
+	}
+	
 	// Key Pair Generation
 	public static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
 		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
 		keyGen.initialize(512);
 		return keyGen.generateKeyPair();
 	}
+	
+	// Key Pair Storage (public key length + X.509 public key + PKCS#8 private key)
+	public static void saveKeyPair(KeyPair keyPair, Path file) throws IOException {
+		byte[] pub = keyPair.getPublic().getEncoded();
+		byte[] priv = keyPair.getPrivate().getEncoded();
+		ByteBuffer buf = ByteBuffer.allocate(4 + pub.length + priv.length);
+		buf.putInt(pub.length).put(pub).put(priv);
+		Files.write(file, buf.array());
+	}
+	
+	public static KeyPair loadKeyPair(Path file) throws Exception {
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+		byte[] pub = new byte[buf.getInt()];
+		buf.get(pub);
+		byte[] priv = new byte[buf.remaining()];
+		buf.get(priv);
+		KeyFactory factory = KeyFactory.getInstance("RSA");
+		return new KeyPair(factory.generatePublic(new X509EncodedKeySpec(pub)), 
+				factory.generatePrivate(new PKCS8EncodedKeySpec(priv)));
+	}
 }
@@ -0,0 +1,154 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Headers-first synchronisation state of a node that is behind its peers.
+// The node first downloads the header chain (GETHEADERS / HEADERS), checks that it links up and that
+// every header carries a valid proof of work, then downloads the block bodies from several peers at
+// once (GETDATA). Bodies may arrive in any order; they are handed back for connection in chain order.
+public class HeaderSync {
+
+	public static final int MAX_HEADERS = 2000; // headers per HEADERS message
+
+	private int maxInFlightPerPeer;
+	private long requestTimeoutMillis;
+
+	private LinkedHashMap<String, Block> headers = new LinkedHashMap<>(); // validated, not connected yet, chain order
+	private Map<String, Block> downloaded = new HashMap<>(); // bodies waiting for their predecessors
+	private Map<String, String> requestedFrom = new HashMap<>(); // block hash -> peer
+	private Map<String, Long> requestExpiry = new HashMap<>();
+
+	private long startTime;
+	private int connected;
+
+	public HeaderSync(int maxInFlightPerPeer, long requestTimeoutMillis) {
+		this.maxInFlightPerPeer = maxInFlightPerPeer;
+		this.requestTimeoutMillis = requestTimeoutMillis;
+	}
+
+	// Proof of work of a header: its hash is the hash of its fields and meets its own target
+	public static boolean checkProofOfWork(Block header) {
+		String hash = header.getHashHeaderBlock();
+		return hash != null && header.getTarget() >= 1 && hash.equals(header.calculateBlockHash())
+				&& hash.startsWith("0".repeat(header.getTarget()));
+	}
+
+	// Hash of the last header waiting for its body, or null
+	public String getLastHeaderHash() {
+		String last = null;
+		for (String hash : headers.keySet()) last = hash;
+		return last;
+	}
+
+	public boolean isActive() {
+		return !headers.isEmpty();
+	}
+
+	public boolean contains(String hash) {
+		return headers.containsKey(hash);
+	}
+
+	// Pending header, or null
+	public Block getHeader(String hash) {
+		return headers.get(hash);
+	}
+
+	// Append headers received from a peer. They must continue the header chain (or the local tip when
+	// nothing is pending; tipHash is null for an empty chain) and carry a valid proof of work.
+	// Returns the number of new headers, or -1 if the batch is invalid (nothing is kept then).
+	public int addHeaders(List<Block> batch, String tipHash) {
+		String expectedPrev = isActive() ? getLastHeaderHash() : tipHash;
+		List<Block> accepted = new ArrayList<>();
+		for (Block header : batch) {
+			if (headers.containsKey(header.getHashHeaderBlock())) {
+				expectedPrev = header.getHashHeaderBlock();
+				continue;
+			}
+			if (expectedPrev != null && !expectedPrev.equals(header.getHashPrevBlock())) return -1;
+			if (!checkProofOfWork(header)) return -1;
+			accepted.add(header);
+			expectedPrev = header.getHashHeaderBlock();
+		}
+
+		if (!isActive() && !accepted.isEmpty()) {
+			startTime = System.currentTimeMillis();
+			connected = 0;
+		}
+		for (Block header : accepted) headers.put(header.getHashHeaderBlock(), header);
+		return accepted.size();
+	}
+
+	// Next block hashes to request from a peer, keeping at most maxInFlightPerPeer requests per peer.
+	// Requests that timed out are given to the next peer asking.
+	public List<String> nextRequests(String peer, long now) {
+		int inFlight = 0;
+		for (Map.Entry<String, String> e : requestedFrom.entrySet()) {
+			if (e.getValue().equals(peer) && requestExpiry.get(e.getKey()) > now) inFlight++;
+		}
+
+		List<String> hashes = new ArrayList<>();
+		for (String hash : headers.keySet()) {
+			if (inFlight + hashes.size() >= maxInFlightPerPeer) break;
+			if (downloaded.containsKey(hash)) continue;
+			Long expiry = requestExpiry.get(hash);
+			if (expiry != null && expiry > now) continue;
+			hashes.add(hash);
+			requestedFrom.put(hash, peer);
+			requestExpiry.put(hash, now + requestTimeoutMillis);
+		}
+		return hashes;
+	}
+
+	// Returns false if the block was not requested by the sync
+	public boolean blockArrived(Block block) {
+		String hash = block.getHashHeaderBlock();
+		if (!headers.containsKey(hash) || downloaded.containsKey(hash)) return false;
+		downloaded.put(hash, block);
+		requestedFrom.remove(hash);
+		requestExpiry.remove(hash);
+		return true;
+	}
+
+	// The next block in chain order, if its body has arrived
+	public Block nextConnectable() {
+		Iterator<String> it = headers.keySet().iterator();
+		if (!it.hasNext()) return null;
+		String hash = it.next();
+		Block block = downloaded.remove(hash);
+		if (block == null) return null;
+		it.remove();
+		connected++;
+		return block;
+	}
+
+	// Give up the rest of the header chain, e.g. when a block turned out to be invalid
+	public void abort() {
+		headers.clear();
+		downloaded.clear();
+		requestedFrom.clear();
+		requestExpiry.clear();
+	}
+
+	public int getRemaining() {
+		return headers.size();
+	}
+
+	public int getInFlight() {
+		return requestedFrom.size();
+	}
+
+	public int getConnected() {
+		return connected;
+	}
+
+	public double getBlocksPerSecond() {
+		long elapsed = System.currentTimeMillis() - startTime;
+		return elapsed <= 0 ? 0.0 : connected * 1000.0 / elapsed;
+	}
+
+}
@@ -0,0 +1,183 @@
+package blockchain;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jade.lang.acl.ACLMessage;
+
+// Per-sender inbound queues between the JADE queue and the message pipeline.
+// Every sender gets a token bucket (messages/s and bytes/s) and a byte budget for what it has queued,
+// and all senders together share a global byte budget, so one flooding peer cannot make the node run
+// out of memory or starve the others. Block traffic is queued separately and always served before
+// transaction traffic.
+//
+// When a budget is exceeded, low priority messages are dropped: the incoming one (drop-newest) or the
+// oldest queued ones (drop-oldest). A high priority message first pushes out the sender's low priority
+// messages, and is only dropped if that is not enough. Messages over the rate limit are deferred: they
+// stay queued until the sender's bucket refills.
+public class InboundQueues {
+
+	public static final int HIGH = 0;
+	public static final int LOW = 1;
+
+	public static final String DROP_NEWEST = "drop-newest";
+	public static final String DROP_OLDEST = "drop-oldest";
+
+	private static class Queued {
+		private final ACLMessage msg;
+		private final int size;
+
+		Queued(ACLMessage msg, int size) {
+			this.msg = msg;
+			this.size = size;
+		}
+	}
+
+	private static class Peer {
+		private List<Deque<Queued>> queues = new ArrayList<>();
+		private long bytes;
+		private double msgTokens;
+		private double byteTokens;
+		private long lastRefill;
+
+		Peer(double msgTokens, double byteTokens, long now) {
+			queues.add(new ArrayDeque<>());
+			queues.add(new ArrayDeque<>());
+			this.msgTokens = msgTokens;
+			this.byteTokens = byteTokens;
+			this.lastRefill = now;
+		}
+	}
+
+	private double msgsPerSecond;
+	private double bytesPerSecond;
+	private long peerBudgetBytes;
+	private long totalBudgetBytes;
+	private String overflowPolicy;
+
+	private Map<String, Peer> peers = new HashMap<>();
+	private List<String> order = new ArrayList<>(); // round robin between senders
+	private int cursor = 0;
+	private long totalBytes;
+	private int queuedCount;
+	private long dropped;
+	private long deferred;
+
+	public InboundQueues(double msgsPerSecond, double bytesPerSecond, long peerBudgetBytes, long totalBudgetBytes,
+			String overflowPolicy) {
+		if (!DROP_NEWEST.equals(overflowPolicy) && !DROP_OLDEST.equals(overflowPolicy)) {
+			throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy);
+		}
+		this.msgsPerSecond = msgsPerSecond;
+		this.bytesPerSecond = bytesPerSecond;
+		this.peerBudgetBytes = peerBudgetBytes;
+		this.totalBudgetBytes = totalBudgetBytes;
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	// Queue a message. Returns the messages dropped to respect the budgets (possibly the new one).
+	public List<ACLMessage> offer(String sender, ACLMessage msg, int size, int priority, long now) {
+		Peer peer = peers.get(sender);
+		if (peer == null) {
+			peer = new Peer(msgsPerSecond, bytesPerSecond, now);
+			peers.put(sender, peer);
+			order.add(sender);
+		}
+
+		List<ACLMessage> droppedNow = new ArrayList<>();
+		boolean makeRoom = priority == HIGH || DROP_OLDEST.equals(overflowPolicy);
+		if (makeRoom) {
+			Deque<Queued> low = peer.queues.get(LOW);
+			while (!low.isEmpty() && overBudget(peer, size)) {
+				droppedNow.add(remove(peer, low.pollFirst()));
+			}
+		}
+		if (overBudget(peer, size)) {
+			droppedNow.add(msg);
+			dropped += droppedNow.size();
+			return droppedNow;
+		}
+
+		peer.queues.get(priority).addLast(new Queued(msg, size));
+		peer.bytes += size;
+		totalBytes += size;
+		queuedCount++;
+		dropped += droppedNow.size();
+		return droppedNow;
+	}
+
+	private boolean overBudget(Peer peer, int size) {
+		return peer.bytes + size > peerBudgetBytes || totalBytes + size > totalBudgetBytes;
+	}
+
+	private ACLMessage remove(Peer peer, Queued q) {
+		peer.bytes -= q.size;
+		totalBytes -= q.size;
+		queuedCount--;
+		return q.msg;
+	}
+
+	// Next message allowed by its sender's rate limit: block traffic of all senders first, senders
+	// served in turn. Null if nothing can be delivered now.
+	public ACLMessage poll(long now) {
+		for (int priority = HIGH; priority <= LOW; priority++) {
+			for (int i = 0; i < order.size(); i++) {
+				int index = (cursor + i) % order.size();
+				Peer peer = peers.get(order.get(index));
+				Deque<Queued> queue = peer.queues.get(priority);
+				if (queue.isEmpty()) continue;
+
+				refill(peer, now);
+				Queued head = queue.peekFirst();
+				// A message bigger than the bucket goes through once the bucket is full
+				boolean bytesOk = peer.byteTokens >= Math.min(head.size, bytesPerSecond);
+				if (peer.msgTokens < 1 || !bytesOk) {
+					deferred++;
+					continue;
+				}
+
+				queue.pollFirst();
+				peer.msgTokens -= 1;
+				peer.byteTokens -= head.size;
+				cursor = (index + 1) % order.size();
+				return remove(peer, head);
+			}
+		}
+		return null;
+	}
+
+	// Token buckets hold at most one second of traffic
+	private void refill(Peer peer, long now) {
+		double seconds = (now - peer.lastRefill) / 1000.0;
+		if (seconds <= 0) return;
+		peer.msgTokens = Math.min(msgsPerSecond, peer.msgTokens + seconds * msgsPerSecond);
+		peer.byteTokens = Math.min(bytesPerSecond, peer.byteTokens + seconds * bytesPerSecond);
+		peer.lastRefill = now;
+	}
+
+	public boolean isEmpty() {
+		return queuedCount == 0;
+	}
+
+	public int getQueuedCount() {
+		return queuedCount;
+	}
+
+	public long getQueuedBytes() {
+		return totalBytes;
+	}
+
+	public long getDropped() {
+		return dropped;
+	}
+
+	// Times a queued message had to wait for its sender's rate limit
+	public long getDeferred() {
+		return deferred;
+	}
+
+}
@@ -0,0 +1,142 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+// Announce-then-fetch gossip state of a node.
+// New objects are announced to peers as short inventory items (type + id) instead of being pushed
+// in full; a peer requests (GETDATA) only the items it does not have yet. Announcements are queued
+// per peer and sent in batches, and items a peer is known to have are never announced to it.
+public class Inventory {
+
+	public static final byte TX = 1;
+	public static final byte BLOCK = 2; // identified by the block header hash
+
+	// Remembered items per peer, oldest forgotten first
+	private static final int MAX_KNOWN_PER_PEER = 20_000;
+
+	public static class Item {
+		private final byte type;
+		private final String id;
+
+		public Item(byte type, String id) {
+			this.type = type;
+			this.id = id;
+		}
+
+		public byte getType() { return type; }
+		public String getId() { return id; }
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Item)) return false;
+			Item other = (Item) o;
+			return type == other.type && id.equals(other.id);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(type, id);
+		}
+
+		@Override
+		public String toString() {
+			return (type == TX ? "tx:" : "block:") + id;
+		}
+	}
+
+	private int maxBatch;
+	private long requestTimeoutMillis;
+
+	private Map<String, List<Item>> queued = new HashMap<>();
+	private Map<String, Map<Item, Boolean>> known = new HashMap<>();
+	private Map<Item, Long> inFlight = new HashMap<>(); // requested item -> time the request expires
+
+	public Inventory(int maxBatch, long requestTimeoutMillis) {
+		this.maxBatch = maxBatch;
+		this.requestTimeoutMillis = requestTimeoutMillis;
+	}
+
+	// Queue an announcement to every peer that does not know the item yet.
+	// Returns the peers whose queue reached a full batch and should be flushed now.
+	public List<String> announce(Item item, Collection<String> peers) {
+		List<String> full = new ArrayList<>();
+		for (String peer : peers) {
+			if (knows(peer, item)) continue;
+			markKnown(peer, item);
+			List<Item> q = queued.computeIfAbsent(peer, k -> new ArrayList<>());
+			q.add(item);
+			if (q.size() >= maxBatch) full.add(peer);
+		}
+		return full;
+	}
+
+	// Take the queued announcements of one peer, at most one batch
+	public List<Item> drain(String peer) {
+		List<Item> q = queued.get(peer);
+		if (q == null || q.isEmpty()) return new ArrayList<>();
+		if (q.size() <= maxBatch) {
+			queued.remove(peer);
+			return q;
+		}
+		List<Item> batch = new ArrayList<>(q.subList(0, maxBatch));
+		q.subList(0, maxBatch).clear();
+		return batch;
+	}
+
+	public Collection<String> peersWithQueuedItems() {
+		return new ArrayList<>(queued.keySet());
+	}
+
+	public void markKnown(String peer, Item item) {
+		known.computeIfAbsent(peer, k -> new LinkedHashMap<Item, Boolean>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Item, Boolean> eldest) {
+				return size() > MAX_KNOWN_PER_PEER;
+			}
+		}).put(item, Boolean.TRUE);
+	}
+
+	public boolean knows(String peer, Item item) {
+		Map<Item, Boolean> k = known.get(peer);
+		return k != null && k.containsKey(item);
+	}
+
+	// True if the item should be requested now: it is not already being fetched from another peer,
+	// or that request timed out
+	public boolean startRequest(Item item, long now) {
+		Long expiry = inFlight.get(item);
+		if (expiry != null && expiry > now) return false;
+		inFlight.put(item, now + requestTimeoutMillis);
+		return true;
+	}
+
+	public boolean isRequested(Item item, long now) {
+		Long expiry = inFlight.get(item);
+		return expiry != null && expiry > now;
+	}
+
+	public void received(Item item) {
+		inFlight.remove(item);
+	}
+
+	public void pruneExpiredRequests(long now) {
+		Iterator<Long> it = inFlight.values().iterator();
+		while (it.hasNext()) {
+			if (it.next() <= now) it.remove();
+		}
+	}
+
+	public int inFlightCount() {
+		return inFlight.size();
+	}
+
+}
@@ -0,0 +1,273 @@
+package blockchain;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.lang.acl.ACLMessage;
+
+// A light (SPV) client. It keeps the block headers only, checking that they link up and carry their
+// proof of work, and a wallet. Payments to its address are found by asking full nodes for the Merkle
+// proofs of the transactions paying it in the blocks not searched yet (GETPROOFS / PROOFS), and each
+// proof is checked against the header the node holds. No MemPool, no block bodies and no GUI, so a
+// machine can run thousands of them next to a few full nodes.
+// The Merkle leaves hash whole transactions, so a full node cannot make up or alter a payment. It can
+// leave one out, though: a light node trusts the full nodes it asks to report every payment, and
+// asking them in turn limits what a single one can hide.
+public class LightNodeAgent extends Agent {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int PROOF_BLOCKS = 500; // blocks searched per GETPROOFS
+
+	private String[] fullNodes = new String[0];
+	private NodeConfig config;
+	private Wallet wallet;
+	private String myAddress;
+	private int nextPeer; // full nodes are asked in turn
+
+	private List<Block> headers = new ArrayList<>(); // header chain, by height
+	private List<BigInteger> chainWork = new ArrayList<>(); // cumulative work, by height
+	private Map<String, Integer> heights = new HashMap<>();
+	private int searchedHeight = -1; // blocks up to this height were searched for payments
+	private Map<String, MerkleProof> payments = new HashMap<>(); // verified payments by txid
+
+	@Override
+	protected void setup() {
+		Object[] args = getArguments();
+		if (args != null && args.length > 0) fullNodes = (String[]) args[0];
+		config = (args != null && args.length > 1 && args[1] instanceof NodeConfig)
+				? (NodeConfig) args[1] : NodeConfig.fromSystemProperties();
+		if (fullNodes.length == 0) {
+			log("No full node to connect to.");
+			doDelete();
+			return;
+		}
+		nextPeer = new Random().nextInt(fullNodes.length);
+
+		// Same key file as a full node, so the node keeps its address across restarts
+		try {
+			Path dataDir = Paths.get(config.getDataDir(), getLocalName());
+			Files.createDirectories(dataDir);
+			Path keyFile = dataDir.resolve("wallet.key");
+			KeyPair keyPair;
+			if (Files.exists(keyFile)) {
+				keyPair = CryptoUtils.loadKeyPair(keyFile);
+			} else {
+				keyPair = CryptoUtils.generateKeyPair();
+				CryptoUtils.saveKeyPair(keyPair, keyFile);
+			}
+			wallet = new Wallet(keyPair, 0);
+			myAddress = CryptoUtils.addressOf(wallet.getPublicKey());
+		} catch (Exception e) {
+			e.printStackTrace();
+			doDelete();
+			return;
+		}
+
+		// Full nodes list the light node as a recipient once they know its address. It does not
+		// announce any compression codec, so their messages to it stay uncompressed.
+		ACLMessage address = new ACLMessage(ACLMessage.INFORM);
+		address.setConversationId("ADDRESS");
+		try {
+			address.setContentObject(myAddress);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		for (String node : fullNodes) address.addReceiver(new AID(node, AID.ISLOCALNAME));
+		send(address);
+
+		addBehaviour(new CyclicBehaviour(this) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void action() {
+				ACLMessage msg = receive();
+				if (msg == null) {
+					block();
+					return;
+				}
+				try {
+					String from = msg.getSender().getLocalName();
+					if ("HEADERS".equals(msg.getConversationId())) {
+						receiveHeaders(WireCodec.decodeHeaders(msg.getByteSequenceContent()), from);
+					} else if ("PROOFS".equals(msg.getConversationId())) {
+						receiveProofs(WireCodec.decodeProofs(msg.getByteSequenceContent()), from);
+					}
+				} catch (Exception e) {
+					log("Dropped unreadable " + msg.getConversationId() + " message: " + e.getMessage());
+				}
+			}
+		});
+
+		addBehaviour(new TickerBehaviour(this, config.getLightPollMillis()) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void onTick() {
+				String peer = nextPeer();
+				requestHeaders(peer);
+				requestProofs(peer);
+			}
+		});
+		requestHeaders(nextPeer());
+	}
+
+	private String nextPeer() {
+		String peer = fullNodes[nextPeer];
+		nextPeer = (nextPeer + 1) % fullNodes.length;
+		return peer;
+	}
+
+	private void sendPayload(byte[] payload, String conversationId, String receiver) {
+		ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+		msg.setConversationId(conversationId);
+		msg.setByteSequenceContent(payload);
+		msg.addReceiver(new AID(receiver, AID.ISLOCALNAME));
+		send(msg);
+	}
+
+	// === Headers ===
+
+	// Locator as a full node builds it: the last ten headers, then exponentially sparser
+	private void requestHeaders(String peer) {
+		List<String> locator = new ArrayList<>();
+		int step = 1;
+		int last = 0;
+		for (int i = headers.size() - 1; i >= 0; i -= step) {
+			locator.add(headers.get(i).getHashHeaderBlock());
+			last = i;
+			if (locator.size() >= 10) step *= 2;
+		}
+		if (!headers.isEmpty() && last != 0) locator.add(headers.get(0).getHashHeaderBlock());
+		sendPayload(WireCodec.encodeGetHeaders(locator), "GETHEADERS", peer);
+	}
+
+	// The batch follows the last locator hash the peer knows: it extends the chain, or branches off
+	// below the tip and replaces the end of the chain if it has more work
+	private void receiveHeaders(List<Block> batch, String from) {
+		if (batch.isEmpty()) return;
+
+		int fork;
+		if (heights.containsKey(batch.get(0).getHashPrevBlock())) {
+			fork = heights.get(batch.get(0).getHashPrevBlock());
+		} else if (headers.isEmpty()) {
+			fork = -1; // the first block of the peer's chain
+		} else {
+			return; // does not connect, a later locator will get the missing part
+		}
+
+		BigInteger work = fork < 0 ? BigInteger.ZERO : chainWork.get(fork);
+		String expectedPrev = batch.get(0).getHashPrevBlock();
+		for (Block header : batch) {
+			if (!expectedPrev.equals(header.getHashPrevBlock()) || !HeaderSync.checkProofOfWork(header)) {
+				log("Rejected headers from " + from + " (broken chain or invalid proof of work)");
+				return;
+			}
+			expectedPrev = header.getHashHeaderBlock();
+			work = work.add(BlockTree.work(header));
+		}
+		if (!headers.isEmpty() && work.compareTo(chainWork.get(headers.size() - 1)) <= 0) return;
+
+		if (fork < headers.size() - 1) disconnectAbove(fork);
+		for (Block header : batch) {
+			BigInteger parentWork = headers.isEmpty() ? BigInteger.ZERO : chainWork.get(headers.size() - 1);
+			heights.put(header.getHashHeaderBlock(), headers.size());
+			headers.add(header);
+			chainWork.add(parentWork.add(BlockTree.work(header)));
+		}
+
+		// A full batch means the peer has more
+		if (batch.size() >= HeaderSync.MAX_HEADERS) requestHeaders(from);
+		requestProofs(from);
+	}
+
+	// A competing chain with more work replaces the headers above fork, with the payments in them
+	private void disconnectAbove(int fork) {
+		for (int h = headers.size() - 1; h > fork; h--) {
+			heights.remove(headers.remove(h).getHashHeaderBlock());
+			chainWork.remove(h);
+		}
+		searchedHeight = Math.min(searchedHeight, fork);
+
+		List<MerkleProof> dropped = new ArrayList<>();
+		for (MerkleProof p : payments.values()) {
+			if (!heights.containsKey(p.getBlockHash())) dropped.add(p);
+		}
+		for (MerkleProof p : dropped) {
+			payments.remove(p.getTx().getId());
+			wallet.removeOutput(p.getTx().getId());
+			wallet.setValue(wallet.getValue() - amountToMe(p.getTx()));
+		}
+		log("Chain reorganisation at height " + fork + ", " + dropped.size() + " payments no longer confirmed.");
+	}
+
+	// === Payments ===
+
+	private void requestProofs(String peer) {
+		int from = searchedHeight + 1;
+		int to = Math.min(headers.size(), from + PROOF_BLOCKS);
+		if (from >= to) return;
+
+		List<String> hashes = new ArrayList<>(to - from);
+		for (int h = from; h < to; h++) hashes.add(headers.get(h).getHashHeaderBlock());
+		sendPayload(WireCodec.encodeGetProofs(new MerkleProof.Request(myAddress, hashes)), "GETPROOFS", peer);
+	}
+
+	// Only proofs that check out against a header of the chain are taken, then the searched blocks
+	// count as done (a block the peer could not search is asked to the next peer)
+	private void receiveProofs(MerkleProof.Response resp, String from) {
+		for (MerkleProof p : resp.getProofs()) {
+			Integer height = heights.get(p.getBlockHash());
+			if (height == null || payments.containsKey(p.getTx().getId())) continue;
+			if (!p.verify(headers.get(height))) {
+				log("Invalid Merkle proof for transaction " + p.getTx().getId() + " from " + from);
+				continue;
+			}
+
+			double amount = amountToMe(p.getTx());
+			if (amount == 0) continue;
+			for (TransactionOutput.Output out : p.getTx().getTxOutput().getOutputList()) {
+				if (out.getScriptPubKey().equals(myAddress)) wallet.addOutput(p.getTx().getId(), out);
+			}
+			payments.put(p.getTx().getId(), p);
+			wallet.setValue(wallet.getValue() + amount);
+			log("Payment of " + amount + " BTC in block " + height + " verified (transaction " + p.getTx().getId()
+					+ "). Balance: " + wallet.getValue() + " BTC");
+		}
+
+		Set<String> searched = new HashSet<>(resp.getSearched());
+		while (searchedHeight + 1 < headers.size()
+				&& searched.contains(headers.get(searchedHeight + 1).getHashHeaderBlock())) {
+			searchedHeight++;
+		}
+	}
+
+	private double amountToMe(Transaction tx) {
+		double amount = 0;
+		for (TransactionOutput.Output out : tx.getTxOutput().getOutputList()) {
+			if (out.getScriptPubKey().equals(myAddress)) amount += out.getValue();
+		}
+		return amount;
+	}
+
+	private void log(String line) {
+		System.out.println("[" + getLocalName() + "] " + line);
+	}
+
+}
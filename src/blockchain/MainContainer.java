@@ -1,5 +1,9 @@
 package blockchain;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 import jade.core.Runtime; // JADE Runtime Environment
 import jade.core.Profile; 
 import jade.core.ProfileImpl; // Used with Profile to store configuration parameters
@@ -13,22 +17,41 @@ public class MainContainer {
 			// Start JADE Runtime
 			Runtime runtime = Runtime.instance();
 			
+			// Number of peripheral containers, each one in its own JVM (0: every node runs in this JVM)
+			int containers = Integer.getInteger("blockchain.containers", 0);
+			String mainHost = System.getProperty("blockchain.mainHost", "localhost");
+			String mainPort = System.getProperty("blockchain.mainPort", "1099");
+			
 			// Profile Settings
 			Profile profile = new ProfileImpl();
 			profile.setParameter(Profile.GUI, "false");
+			profile.setParameter(Profile.MAIN_HOST, mainHost);
+			profile.setParameter(Profile.MAIN_PORT, mainPort);
 			
 			// Creating the main container for the agents
 			AgentContainer mainContainer = runtime.createMainContainer(profile);
 			
 			// Create the blockchain nodes
-			int numAgents = 2;
+			int numAgents = Integer.getInteger("blockchain.nodes", 2);
             String[] agentNames = new String[numAgents];
             for (int i = 0; i < numAgents; i++) {
                 agentNames[i] = "node" + (i + 1);
             }
+            
+            // Light nodes (headers and wallet only) served by the full nodes
+            int numLightAgents = Integer.getInteger("blockchain.lightNodes", 0);
+            String[] lightNames = new String[numLightAgents];
+            for (int i = 0; i < numLightAgents; i++) {
+            	lightNames[i] = "light" + (i + 1);
+            }
+            
+            if (containers > 0) {
+            	startPeripheralContainers(containers, mainHost, mainPort, agentNames, lightNames);
+            	return;
+            }
 
-            // Pass all agent names to each agent
-            Object[] arguments = new Object[] { agentNames };
+            // Pass all agent names and the node configuration to each agent
+            Object[] arguments = new Object[] { agentNames, NodeConfig.fromSystemProperties() };
 
             for (String name : agentNames) {
                 AgentController agent = mainContainer.createNewAgent(
@@ -38,10 +61,59 @@ public class MainContainer {
                 );
                 agent.start();
             }
+            for (String name : lightNames) {
+            	mainContainer.createNewAgent(name, "blockchain.LightNodeAgent", arguments).start();
+            }
 			
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
+	
+	// Launching the peripheral containers as separate local JVMs, the nodes (full and light) being spread across them.
+	// They get the same class/module path and the same -Dblockchain.* settings as this JVM, and are
+	// stopped together with it.
+	private static void startPeripheralContainers(int count, String mainHost, String mainPort, 
+			String[] agentNames, String[] lightNames) throws Exception {
+		List<Process> processes = new ArrayList<>();
+		java.lang.Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			for (Process p : processes) p.destroy();
+		}));
+		
+		for (int i = 0; i < count; i++) {
+			List<String> command = new ArrayList<>();
+			command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+			
+			String heap = System.getProperty("blockchain.containerHeap");
+			if (heap != null) command.add("-Xmx" + heap);
+			for (String key : System.getProperties().stringPropertyNames()) {
+				if (key.startsWith("blockchain.")) command.add("-D" + key + "=" + System.getProperty(key));
+			}
+			
+			// Same launch mode as this JVM: module path when started as a module, class path otherwise
+			String modulePath = System.getProperty("jdk.module.path");
+			Module module = MainContainer.class.getModule();
+			if (modulePath != null && module.isNamed()) {
+				command.add("-p");
+				command.add(modulePath);
+				command.add("-m");
+				command.add(module.getName() + "/" + PeripheralContainer.class.getName());
+			} else {
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(PeripheralContainer.class.getName());
+			}
+			
+			command.add(mainHost);
+			command.add(mainPort);
+			command.add(String.valueOf(i));
+			command.add(String.valueOf(count));
+			command.add(String.join(",", agentNames));
+			if (lightNames.length > 0) command.add(String.join(",", lightNames));
+			
+			processes.add(new ProcessBuilder(command).inheritIO().start());
+			System.out.println("Started peripheral container " + (i + 1) + " of " + count);
+		}
+	}
 
 }
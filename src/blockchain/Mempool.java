@@ -0,0 +1,471 @@
+package blockchain;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Node's pool of unconfirmed transactions.
+// Every entry carries its implicit fee (inputs - outputs) and the aggregated fee/size of its
+// unconfirmed ancestors, so the block template builder can pick whole packages (parent + child).
+// A spent-outpoint index (prevTxId:index -> spending entry) makes double-spend checks O(1).
+// The pool is bounded by an estimated byte budget: when it is exceeded, the entries with the
+// lowest descendant score are evicted together with their descendants. Entries also expire
+// after a time-to-live.
+public class Mempool {
+
+	public static class Entry {
+		private final Transaction tx;
+		private final double fee;
+		private final int size;
+		private final int sigOps;
+		private final long entryTime;
+
+		// Direct in-mempool parents and children
+		private final Set<Entry> parents = new HashSet<>();
+		private final Set<Entry> children = new HashSet<>();
+
+		// Aggregates over this entry and all of its in-mempool ancestors
+		private double ancestorFee;
+		private int ancestorSize;
+		private int ancestorCount;
+
+		// Aggregates over this entry and all of its in-mempool descendants
+		private double descendantFee;
+		private int descendantSize;
+		private int descendantCount;
+
+		Entry(Transaction tx, double fee, int size, long entryTime) {
+			this.tx = tx;
+			this.fee = fee;
+			this.size = size;
+			this.sigOps = tx.countSigOps();
+			this.entryTime = entryTime;
+			this.ancestorFee = fee;
+			this.ancestorSize = size;
+			this.ancestorCount = 1;
+			this.descendantFee = fee;
+			this.descendantSize = size;
+			this.descendantCount = 1;
+		}
+
+		public Transaction getTx() { return tx; }
+		public String getId() { return tx.getId(); }
+		public double getFee() { return fee; }
+		public int getSize() { return size; }
+		public int getSigOps() { return sigOps; }
+		public long getEntryTime() { return entryTime; }
+		public Set<Entry> getParents() { return parents; }
+		public Set<Entry> getChildren() { return children; }
+		public double getAncestorFee() { return ancestorFee; }
+		public int getAncestorSize() { return ancestorSize; }
+		public int getAncestorCount() { return ancestorCount; }
+		public double getDescendantFee() { return descendantFee; }
+		public int getDescendantSize() { return descendantSize; }
+		public int getDescendantCount() { return descendantCount; }
+
+		public double getFeeRate() {
+			return fee / size;
+		}
+
+		public double getAncestorFeeRate() {
+			return ancestorFee / ancestorSize;
+		}
+
+		// An entry is worth keeping if either itself or its descendant package pays well
+		public double getDescendantScore() {
+			return Math.max(getFeeRate(), descendantFee / descendantSize);
+		}
+	}
+
+	// Highest ancestor fee rate first, oldest first on ties (same order as the old FIFO selection)
+	public static final Comparator<Entry> ANCESTOR_SCORE = (a, b) -> {
+		int c = Double.compare(b.getAncestorFeeRate(), a.getAncestorFeeRate());
+		if (c != 0) return c;
+		c = Long.compare(a.getTx().getTimestamp(), b.getTx().getTimestamp());
+		if (c != 0) return c;
+		return a.getId().compareTo(b.getId());
+	};
+
+	// Lowest descendant score first (first to evict), newest first on ties
+	public static final Comparator<Entry> EVICTION_ORDER = (a, b) -> {
+		int c = Double.compare(a.getDescendantScore(), b.getDescendantScore());
+		if (c != 0) return c;
+		c = Long.compare(b.getEntryTime(), a.getEntryTime());
+		if (c != 0) return c;
+		return a.getId().compareTo(b.getId());
+	};
+
+	private Map<String, Entry> entries = new LinkedHashMap<>(); // insertion order = entry time order
+	private TreeSet<Entry> byDescendantScore = new TreeSet<>(EVICTION_ORDER);
+	private long totalBytes = 0;
+	private long maxBytes;
+	private TreeSet<Entry> byAncestorScore = new TreeSet<>(ANCESTOR_SCORE); // maintained on every add/remove
+	private Map<String, Entry> spentOutpoints = new HashMap<>();
+
+	// A conflicting transaction may only replace this many mempool entries (conflicts + descendants)
+	private static final int MAX_REPLACED = 100;
+
+	// Details of the last add() call
+	private String rejectReason;
+	private List<Entry> replaced = new ArrayList<>();
+	private List<Entry> evicted = new ArrayList<>();
+
+	public Mempool(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	// Implicit fee of a transaction, or NaN when one of its inputs is unknown or an output is invalid.
+	// Inputs are resolved against the confirmed UTXO set first, then against unconfirmed parents.
+	public double computeFee(Transaction tx, UtxoSet utxos) {
+		double in = 0.0;
+		for (TransactionInput.Input input : tx.getTxInput().getInputList()) {
+			TransactionOutput.Output prev = findOutput(input.getPrevTxId(), input.getIndex(), utxos);
+			if (prev == null) return Double.NaN;
+			in += prev.getValue();
+		}
+
+		// Transactions without inputs (system / coinbase) create coins and pay no fee
+		if (tx.getTxInput().getInputList().isEmpty()) return 0.0;
+
+		return in - BlockValidator.totalOutput(tx);
+	}
+
+	// Outpoints (prevTxId:index) spent by the transaction that are neither confirmed nor in the pool
+	public List<String> findMissingInputs(Transaction tx, UtxoSet utxos) {
+		List<String> missing = new ArrayList<>();
+		for (TransactionInput.Input in : tx.getTxInput().getInputList()) {
+			if (findOutput(in.getPrevTxId(), in.getIndex(), utxos) == null) {
+				missing.add(UtxoSet.key(in.getPrevTxId(), in.getIndex()));
+			}
+		}
+		return missing;
+	}
+
+	// Output in the UTXO set or created by a MemPool transaction, null if neither
+	public TransactionOutput.Output findOutput(String txId, int index, UtxoSet utxos) {
+		TransactionOutput.Output out = utxos.get(txId, index);
+		if (out != null) return out;
+
+		Entry parent = entries.get(txId);
+		if (parent != null) {
+			List<TransactionOutput.Output> outs = parent.getTx().getTxOutput().getOutputList();
+			if (index >= 0 && index < outs.size()) return outs.get(index);
+		}
+		return null;
+	}
+
+	// Admit a transaction. Returns the new entry, or null if it is refused (see getRejectReason()).
+	// A transaction spending an outpoint already spent in the mempool replaces the conflicting
+	// transactions (and their descendants) only if it pays more in total and per byte.
+	public Entry add(Transaction tx, UtxoSet utxos) {
+		rejectReason = null;
+		replaced = new ArrayList<>();
+		evicted = new ArrayList<>();
+
+		if (entries.containsKey(tx.getId())) return reject("already in mempool");
+
+		// Outputs a block would reject, and empty ones: a transaction in the pool pays someone
+		if (Double.isNaN(BlockValidator.totalOutput(tx))) return reject("negative or invalid output");
+		for (TransactionOutput.Output o : tx.getTxOutput().getOutputList()) {
+			if (o.getValue() == 0) return reject("zero output");
+		}
+
+		double fee = computeFee(tx, utxos);
+		if (Double.isNaN(fee)) return reject("unknown inputs");
+		// Same tolerance as BlockValidator: an exactly balanced transaction can come out a hair below 0
+		if (fee < -BlockValidator.EPSILON) return reject("outputs exceed inputs");
+		fee = Math.max(fee, 0.0);
+
+		Entry entry = new Entry(tx, fee, tx.estimateSize(), System.currentTimeMillis());
+
+		// Conflicting spends, found through the outpoint index
+		Set<String> outpoints = new HashSet<>();
+		Set<Entry> conflicts = new HashSet<>();
+		for (TransactionInput.Input in : tx.getTxInput().getInputList()) {
+			String key = UtxoSet.key(in.getPrevTxId(), in.getIndex());
+			if (!outpoints.add(key)) return reject("spends " + key + " twice");
+			Entry other = spentOutpoints.get(key);
+			if (other != null) conflicts.add(other);
+		}
+
+		if (!conflicts.isEmpty()) {
+			Set<Entry> toEvict = new HashSet<>();
+			for (Entry c : conflicts) {
+				toEvict.add(c);
+				toEvict.addAll(getDescendants(c));
+			}
+			if (toEvict.size() > MAX_REPLACED) return reject("would replace too many transactions");
+
+			double evictedFees = 0.0;
+			for (Entry e : toEvict) {
+				if (entry.getFeeRate() <= e.getFeeRate()) return reject("double spend of " + e.getId());
+				evictedFees += e.fee;
+			}
+			if (fee <= evictedFees) return reject("double spend of " + conflicts.iterator().next().getId());
+
+			// The replacement cannot depend on what it replaces
+			for (TransactionInput.Input in : tx.getTxInput().getInputList()) {
+				Entry parent = entries.get(in.getPrevTxId());
+				if (parent != null && toEvict.contains(parent)) return reject("spends a transaction it replaces");
+			}
+
+			for (Entry c : conflicts) {
+				if (entries.containsKey(c.getId())) replaced.addAll(removeWithDescendants(c.getId()));
+			}
+		}
+
+		insert(entry);
+		evicted = trimToSize(maxBytes);
+		if (!entries.containsKey(tx.getId())) {
+			// Refused for lack of room: what it replaced and what was trimmed for it come back
+			List<Entry> removed = new ArrayList<>(replaced);
+			removed.addAll(evicted);
+			removed.remove(entry);
+			restore(removed);
+			replaced = new ArrayList<>();
+			evicted = new ArrayList<>();
+			return reject("mempool full");
+		}
+		return entry;
+	}
+
+	private void insert(Entry entry) {
+		for (TransactionInput.Input in : entry.getTx().getTxInput().getInputList()) {
+			Entry parent = entries.get(in.getPrevTxId());
+			if (parent != null) {
+				entry.parents.add(parent);
+				parent.children.add(entry);
+			}
+		}
+
+		for (Entry ancestor : getAncestors(entry)) {
+			entry.ancestorFee += ancestor.fee;
+			entry.ancestorSize += ancestor.size;
+			entry.ancestorCount++;
+		}
+
+		for (Entry ancestor : getAncestors(entry)) {
+			byDescendantScore.remove(ancestor);
+			ancestor.descendantFee += entry.fee;
+			ancestor.descendantSize += entry.size;
+			ancestor.descendantCount++;
+			byDescendantScore.add(ancestor);
+		}
+
+		entries.put(entry.getId(), entry);
+		byAncestorScore.add(entry);
+		byDescendantScore.add(entry);
+		totalBytes += entry.size;
+		for (TransactionInput.Input in : entry.getTx().getTxInput().getInputList()) {
+			spentOutpoints.put(UtxoSet.key(in.getPrevTxId(), in.getIndex()), entry);
+		}
+	}
+
+	// Put removed entries back as they were, parents before children (fewer ancestors first)
+	private void restore(List<Entry> removed) {
+		removed.sort((a, b) -> Integer.compare(a.getAncestorCount(), b.getAncestorCount()));
+		for (Entry e : removed) {
+			insert(new Entry(e.getTx(), e.fee, e.size, e.entryTime));
+		}
+
+		// Back to their place in entry time order, which expire() relies on
+		List<Entry> ordered = new ArrayList<>(entries.values());
+		ordered.sort((a, b) -> Long.compare(a.getEntryTime(), b.getEntryTime()));
+		entries.clear();
+		for (Entry e : ordered) entries.put(e.getId(), e);
+	}
+
+	private Entry reject(String reason) {
+		rejectReason = reason;
+		return null;
+	}
+
+	public String getRejectReason() {
+		return rejectReason;
+	}
+
+	// Entries evicted by the last successful add() because it replaced them
+	public List<Entry> getReplaced() {
+		return replaced;
+	}
+
+	// Entries evicted by the last add() to stay within the byte budget
+	public List<Entry> getEvicted() {
+		return evicted;
+	}
+
+	// The mempool transaction spending the given outpoint, or null
+	public Entry getSpender(String txId, int index) {
+		return spentOutpoints.get(UtxoSet.key(txId, index));
+	}
+
+	// Remove the transactions of a newly connected block, then drop every remaining mempool
+	// transaction that spends one of the block's outpoints (and its descendants).
+	// Returns the entries dropped as conflicts.
+	public List<Entry> removeForBlock(Block block) {
+		for (Transaction tx : block.getTransactions()) {
+			removeConfirmed(tx.getId());
+		}
+
+		List<Entry> conflicts = new ArrayList<>();
+		for (Transaction tx : block.getTransactions()) {
+			for (TransactionInput.Input in : tx.getTxInput().getInputList()) {
+				Entry other = spentOutpoints.get(UtxoSet.key(in.getPrevTxId(), in.getIndex()));
+				if (other != null) conflicts.addAll(removeWithDescendants(other.getId()));
+			}
+		}
+		return conflicts;
+	}
+
+	// Remove a transaction that was confirmed in a block. Its descendants stay in the pool
+	// but no longer count it as an unconfirmed ancestor.
+	public Entry removeConfirmed(String txId) {
+		Entry entry = entries.get(txId);
+		if (entry == null) return null;
+
+		for (Entry desc : getDescendants(entry)) {
+			byAncestorScore.remove(desc);
+			desc.ancestorFee -= entry.fee;
+			desc.ancestorSize -= entry.size;
+			desc.ancestorCount--;
+			byAncestorScore.add(desc);
+		}
+
+		unlink(entry);
+		return entry;
+	}
+
+	// Remove a transaction together with everything that spends it.
+	public List<Entry> removeWithDescendants(String txId) {
+		Entry entry = entries.get(txId);
+		List<Entry> removed = new ArrayList<>();
+		if (entry == null) return removed;
+
+		removed.add(entry);
+		removed.addAll(getDescendants(entry));
+
+		// Children before parents, so every ancestor still sees the entries it has to subtract
+		removed.sort((a, b) -> Integer.compare(b.getAncestorCount(), a.getAncestorCount()));
+		for (Entry e : removed) {
+			unlink(e);
+		}
+		return removed;
+	}
+
+	// Evict the lowest scoring packages until the pool fits in maxBytes. Returns the evicted entries.
+	public List<Entry> trimToSize(long maxBytes) {
+		List<Entry> evicted = new ArrayList<>();
+		while (totalBytes > maxBytes && !byDescendantScore.isEmpty()) {
+			evicted.addAll(removeWithDescendants(byDescendantScore.first().getId()));
+		}
+		return evicted;
+	}
+
+	// Drop entries (and their descendants) that entered the pool before the cutoff time
+	public List<Entry> expire(long cutoffTime) {
+		List<Entry> expired = new ArrayList<>();
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry oldest = it.next();
+			if (oldest.getEntryTime() >= cutoffTime) break;
+			expired.addAll(removeWithDescendants(oldest.getId()));
+			it = entries.values().iterator(); // removal may have touched newer entries as well
+		}
+		return expired;
+	}
+
+	private void unlink(Entry entry) {
+		for (Entry ancestor : getAncestors(entry)) {
+			byDescendantScore.remove(ancestor);
+			ancestor.descendantFee -= entry.fee;
+			ancestor.descendantSize -= entry.size;
+			ancestor.descendantCount--;
+			byDescendantScore.add(ancestor);
+		}
+
+		byAncestorScore.remove(entry);
+		byDescendantScore.remove(entry);
+		entries.remove(entry.getId());
+		totalBytes -= entry.size;
+		for (TransactionInput.Input in : entry.getTx().getTxInput().getInputList()) {
+			spentOutpoints.remove(UtxoSet.key(in.getPrevTxId(), in.getIndex()), entry);
+		}
+		for (Entry p : entry.parents) p.children.remove(entry);
+		for (Entry c : entry.children) c.parents.remove(entry);
+		entry.parents.clear();
+		entry.children.clear();
+	}
+
+	public Set<Entry> getAncestors(Entry entry) {
+		return walk(entry, true);
+	}
+
+	public Set<Entry> getDescendants(Entry entry) {
+		return walk(entry, false);
+	}
+
+	private Set<Entry> walk(Entry start, boolean up) {
+		Set<Entry> seen = new HashSet<>();
+		Deque<Entry> stack = new ArrayDeque<>(up ? start.parents : start.children);
+		while (!stack.isEmpty()) {
+			Entry e = stack.pop();
+			if (seen.add(e)) {
+				stack.addAll(up ? e.parents : e.children);
+			}
+		}
+		return seen;
+	}
+
+	public Entry get(String txId) {
+		return entries.get(txId);
+	}
+
+	public boolean contains(String txId) {
+		return entries.containsKey(txId);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	// Estimated serialized size of all the transactions in the pool
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	// Entries ordered by ancestor fee rate, best first
+	public Iterable<Entry> byAncestorScore() {
+		return byAncestorScore;
+	}
+
+	// Transactions ordered so that every parent comes before its children
+	public List<Transaction> getTransactionsParentsFirst() {
+		List<Entry> sorted = new ArrayList<>(entries.values());
+		sorted.sort((a, b) -> Integer.compare(a.getAncestorCount(), b.getAncestorCount()));
+		List<Transaction> txs = new ArrayList<>();
+		for (Entry e : sorted) txs.add(e.getTx());
+		return txs;
+	}
+
+	// Transactions ordered by timestamp, for display and balance checks
+	public List<Transaction> getTransactions() {
+		List<Transaction> txs = new ArrayList<>();
+		for (Entry e : entries.values()) txs.add(e.getTx());
+		txs.sort((a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+		return txs;
+	}
+
+}
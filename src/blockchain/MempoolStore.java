@@ -0,0 +1,112 @@
+package blockchain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Binary dump of a node's pending transactions and MemPool, so a restarted node does not start empty.
+// Layout: magic, version, save time, pending transactions, then MemPool transactions (parents first).
+// The MemPool section is read back in batches, so reloading thousands of entries never needs them
+// all in memory at once.
+public class MempoolStore {
+
+	private static final int MAGIC = 0x4D504F4C; // "MPOL"
+	private static final byte VERSION = 2; // 2: transactions in WireCodec format
+	private static final int MAX_TRANSACTION_SIZE = 1_000_000;
+
+	private Path file;
+
+	public MempoolStore(Path file) {
+		this.file = file;
+	}
+
+	// Write to a temporary file first so a crash during the dump never leaves a truncated file behind
+	public synchronized void save(List<Transaction> mempoolTxs, List<Transaction> pending) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(System.currentTimeMillis());
+
+			out.writeInt(pending.size());
+			for (Transaction tx : pending) writeTransaction(out, tx);
+
+			out.writeInt(mempoolTxs.size());
+			for (Transaction tx : mempoolTxs) writeTransaction(out, tx);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Open the dump for streaming, or return null if there is nothing to reload
+	public Reader open() throws IOException {
+		if (!Files.exists(file)) return null;
+		return new Reader(new DataInputStream(new BufferedInputStream(Files.newInputStream(file))));
+	}
+
+	public static class Reader implements Closeable {
+		private DataInputStream in;
+		private long savedAt;
+		private List<Transaction> pending = new ArrayList<>();
+		private int remaining;
+
+		Reader(DataInputStream in) throws IOException {
+			this.in = in;
+			try {
+				if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+					throw new IOException("Unknown mempool file format");
+				}
+				savedAt = in.readLong();
+				int pendingCount = in.readInt();
+				for (int i = 0; i < pendingCount; i++) pending.add(readTransaction(in));
+				remaining = in.readInt();
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		public long getSavedAt() { return savedAt; }
+		public List<Transaction> getPending() { return pending; }
+		public int getRemaining() { return remaining; }
+
+		// Next MemPool transactions, at most max of them; empty once the file is exhausted
+		public List<Transaction> nextBatch(int max) throws IOException {
+			List<Transaction> batch = new ArrayList<>();
+			while (remaining > 0 && batch.size() < max) {
+				batch.add(readTransaction(in));
+				remaining--;
+			}
+			return batch;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	// Transactions are stored in their wire encoding, prefixed by its length
+	static void writeTransaction(DataOutputStream out, Transaction tx) throws IOException {
+		byte[] data = WireCodec.encodeTransaction(tx);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	static Transaction readTransaction(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0 || len > MAX_TRANSACTION_SIZE) throw new IOException("Invalid transaction length " + len);
+		byte[] data = new byte[len];
+		in.readFully(data);
+		return WireCodec.decodeTransaction(data);
+	}
+
+}
@@ -0,0 +1,67 @@
+package blockchain;
+
+import java.util.List;
+
+// Proof that a transaction is in a block: the transaction, its position in the block and the sibling
+// hashes on the path up to the Merkle root (GETPROOFS / PROOFS). A light node that only holds the
+// block header checks it without downloading the block.
+public class MerkleProof {
+
+	private final String blockHash;
+	private final int index;
+	private final List<String> branch;
+	private final Transaction tx;
+
+	public MerkleProof(String blockHash, int index, List<String> branch, Transaction tx) {
+		this.blockHash = blockHash;
+		this.index = index;
+		this.branch = branch;
+		this.tx = tx;
+	}
+
+	public static MerkleProof fromBlock(Block block, int index) {
+		return new MerkleProof(block.getHashHeaderBlock(), index, block.getMerkleBranch(index),
+				block.getTransactions().get(index));
+	}
+
+	// The transaction hashes up to the Merkle root of the header
+	public boolean verify(Block header) {
+		return blockHash.equals(header.getHashHeaderBlock()) && header.getMerkleRoot().equals(
+				Block.merkleRootFromBranch(Block.transactionHash(tx), index, branch));
+	}
+
+	public String getBlockHash() { return blockHash; }
+	public int getIndex() { return index; }
+	public List<String> getBranch() { return branch; }
+	public Transaction getTx() { return tx; }
+
+	// GETPROOFS: the transactions paying an address in the given blocks
+	public static class Request {
+		private final String address;
+		private final List<String> blockHashes;
+
+		public Request(String address, List<String> blockHashes) {
+			this.address = address;
+			this.blockHashes = blockHashes;
+		}
+
+		public String getAddress() { return address; }
+		public List<String> getBlockHashes() { return blockHashes; }
+	}
+
+	// PROOFS: the requested blocks that were searched (a pruned or unknown block is not), and the
+	// proofs found in them
+	public static class Response {
+		private final List<String> searched;
+		private final List<MerkleProof> proofs;
+
+		public Response(List<String> searched, List<MerkleProof> proofs) {
+			this.searched = searched;
+			this.proofs = proofs;
+		}
+
+		public List<String> getSearched() { return searched; }
+		public List<MerkleProof> getProofs() { return proofs; }
+	}
+
+}
@@ -0,0 +1,124 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jade.lang.acl.ACLMessage;
+
+// Staged processing of incoming messages, so one expensive message does not stall the agent.
+//   receive: the agent thread takes messages from its JADE queue and submits them (nothing else)
+//   decode/validate: a bounded worker pool decodes the content and runs the expensive stateless
+//                    checks (e.g. signatures)
+//   apply: the agent thread takes the results back in arrival order and is the only one to change
+//          the node state (MemPool, chain, GUI)
+// When the worker queue is full the agent stops taking messages, which then wait in the JADE queue.
+public class MessagePipeline {
+
+	public interface Decoder {
+		Object decode(ACLMessage msg) throws Exception;
+	}
+
+	public static class Result implements Comparable<Result> {
+		private final long seq;
+		private final ACLMessage msg;
+		private final Object value;
+		private final Exception error;
+
+		Result(long seq, ACLMessage msg, Object value, Exception error) {
+			this.seq = seq;
+			this.msg = msg;
+			this.value = value;
+			this.error = error;
+		}
+
+		public ACLMessage getMsg() { return msg; }
+		public Object getValue() { return value; }
+		public Exception getError() { return error; }
+
+		@Override
+		public int compareTo(Result other) {
+			return Long.compare(seq, other.seq);
+		}
+	}
+
+	private Decoder decoder;
+	private Runnable onResult; // wakes the apply stage up
+	private ThreadPoolExecutor workers;
+	private int queueCapacity;
+
+	private long nextSubmit = 0; // agent thread only
+	private long nextApply = 0;
+	private PriorityQueue<Result> done = new PriorityQueue<>(); // guarded by this
+	private int maxQueued = 0;
+
+	public MessagePipeline(int workerCount, int queueCapacity, Decoder decoder, Runnable onResult) {
+		this.decoder = decoder;
+		this.onResult = onResult;
+		this.queueCapacity = queueCapacity;
+		this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), r -> {
+					Thread t = new Thread(r, "message-worker");
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	// False when the workers are saturated: the message should be left in the JADE queue for now
+	public boolean hasCapacity() {
+		return workers.getQueue().size() < queueCapacity;
+	}
+
+	public void submit(ACLMessage msg) {
+		long seq = nextSubmit++;
+		workers.execute(() -> {
+			Result result;
+			try {
+				result = new Result(seq, msg, decoder.decode(msg), null);
+			} catch (Exception e) {
+				result = new Result(seq, msg, null, e);
+			}
+			synchronized (this) {
+				done.add(result);
+			}
+			onResult.run();
+		});
+		maxQueued = Math.max(maxQueued, workers.getQueue().size());
+	}
+
+	// Results ready to be applied, in the order their messages were received
+	public synchronized List<Result> takeReady(int max) {
+		List<Result> ready = new ArrayList<>();
+		while (ready.size() < max && !done.isEmpty() && done.peek().seq == nextApply) {
+			ready.add(done.poll());
+			nextApply++;
+		}
+		return ready;
+	}
+
+	// Messages waiting for a worker
+	public int getDecodeQueueDepth() {
+		return workers.getQueue().size();
+	}
+
+	public int getDecoding() {
+		return workers.getActiveCount();
+	}
+
+	// Decoded messages waiting to be applied (including ones held back behind a slower earlier message)
+	public synchronized int getApplyQueueDepth() {
+		return done.size();
+	}
+
+	public int getMaxDecodeQueueDepth() {
+		return maxQueued;
+	}
+
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+
+}
@@ -1,20 +1,41 @@
 package blockchain;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
 
 import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
 import jade.lang.acl.ACLMessage;
 
 //import java.util.concurrent.TimeUnit;
@@ -24,20 +45,72 @@ import jade.lang.acl.ACLMessage;
 public class NodeAgent extends Agent {
 
     private static final long serialVersionUID = 1L;
+    
+    // ACL parameter carrying the ids of the objects in a message, so duplicates are dropped before decoding
+    private static final String OBJECT_IDS_PARAM = "object-ids";
+    // Codec of a compressed payload, and the codecs a node can read (advertised with its ADDRESS)
+    private static final String COMPRESSION_PARAM = "compression";
+    private static final String ACCEPT_COMPRESSION_PARAM = "accept-compression";
+    private static final String SENT_AT_PARAM = "sent-at"; // when the miner first sent the block, kept on relays
+    private static final int MAX_APPLY_PER_STEP = 50; // decoded messages applied before taking new ones
+    private static final long IDLE_WAIT_MILLIS = 100;
+    private static final long RATE_LIMIT_WAIT_MILLIS = 10;
     private BlockchainGUI gui;
     private Wallet wallet;
     private String myAddress;
     private Block currentBlock;
     
-    private int TARGET_VALUE = 3;
-    private double MINING_REWARD = 6.25;
+    private static final int INITIAL_TARGET = 3;
+    private int TARGET_VALUE = INITIAL_TARGET;
+    private static final int DISPLAYED_BLOCKS = 20; // block ids shown in the GUI chain line
+    private static final double MINING_REWARD = 6.25; // subsidy of the first blocks, lowered by 0.1 every 5 blocks
     private volatile boolean mining = false;
     
     private String[] allNodeNames;
+    private List<String> neighbours; // peers in the overlay, the only nodes objects are relayed to
     private Map<String, String> knownNodes = new HashMap<>();
-    private List<Transaction> mempool = new ArrayList<>();
+    private Map<String, Set<String>> peerCompression = new HashMap<>(); // codecs each node accepts
+    private NodeConfig config;
+    private NodeMetrics metrics = new NodeMetrics();
+    private Mempool mempool;
+    private OrphanPool orphanPool;
+    private UtxoSet utxoSet = new UtxoSet();
     private List<Transaction> pendingTransactions = new ArrayList<>();
-    private List<Block> blockchain = new ArrayList<>();
+    private boolean mempoolChanged; // the MemPool display is refreshed once per batch, see addToMempool
+    private List<Transaction> reloadWaiting = new ArrayList<>(); // saved MemPool txs whose inputs are not synced yet
+    private ChainIndex chain = new ChainIndex(); // the active chain
+    private BlockStore blockStore;
+    private UtxoStore utxoStore;
+    private volatile int snapshotHeight = -1; // chain height of the last saved UTXO snapshot
+    private volatile boolean snapshotPending = false;
+    private int prunedHeight = -1; // blocks up to this height can no longer be disconnected
+    private BlockTree blockTree; // every valid block seen, side branches included
+    private BlockValidator blockValidator;
+    private Set<String> checkpoints = new HashSet<>(); // assume-valid hashes whose header is not known yet
+    private Set<String> assumedValid = new HashSet<>(); // checkpoints and their ancestors, not connected yet
+    private Map<String, CompactBlock> pendingCompactBlocks = new HashMap<>(); // waiting for BLOCKTXN
+    private Map<String, String> compactFallbacks = new HashMap<>(); // block hash -> second peer that sent it
+    private Map<String, Long> blockSentAt = new LinkedHashMap<String, Long>() { // recent blocks, see SENT_AT_PARAM
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > 1_000;
+		}
+	};
+    private Inventory inventory;
+    private TransactionBatcher txBatcher;
+    private SeenFilter seenFilter;
+    private HeaderSync headerSync;
+    private MessagePipeline pipeline;
+    private InboundQueues inbound;
+    private CyclicBehaviour messageLoop;
+    private Queue<Runnable> agentActions = new ConcurrentLinkedQueue<>(); // GUI actions, run by the message loop
+    
+    private Path dataDir;
+    private MempoolStore mempoolStore;
+    private ExecutorService storageExecutor = Executors.newSingleThreadExecutor(); // background disk writes
 
     @Override
     protected void setup() {
@@ -48,24 +121,52 @@ public class NodeAgent extends Agent {
         if (args != null && args.length > 0) {
             allNodeNames = (String[]) args[0];
         }
+        config = (args != null && args.length > 1 && args[1] instanceof NodeConfig) 
+        		? (NodeConfig) args[1] : NodeConfig.fromSystemProperties();
+        Topology topology = Topology.build(config, allNodeNames);
+        neighbours = topology.neighbours(getLocalName());
+        mempool = new Mempool(config.getMempoolMaxBytes());
+        orphanPool = new OrphanPool(config.getOrphanMaxCount());
+        inventory = new Inventory(config.getInvBatchSize(), config.getGetDataTimeoutMillis());
+        txBatcher = new TransactionBatcher(config.getTxBatchMaxCount(), config.getTxBatchWindowMillis());
+        seenFilter = new SeenFilter(config.getSeenFilterSize());
+        inbound = new InboundQueues(config.getInboundPeerMsgsPerSecond(), config.getInboundPeerBytesPerSecond(), 
+        		config.getInboundPeerQueueBytes(), config.getInboundTotalQueueBytes(), config.getInboundOverflowPolicy());
+        headerSync = new HeaderSync(config.getSyncBlocksPerPeer(), config.getGetDataTimeoutMillis());
+        dataDir = Paths.get(config.getDataDir(), getLocalName());
+        mempoolStore = new MempoolStore(dataDir.resolve("mempool.dat"));
+        blockStore = new BlockStore(dataDir.resolve("blocks"), config.getBlockSegmentMaxBytes());
+        blockTree = new BlockTree(blockStore);
+        utxoStore = new UtxoStore(dataDir.resolve("utxo.dat"));
+        blockValidator = new BlockValidator(config.getValidationWorkers()); // needed by loadBlockStore
+        for (String hash : config.getAssumeValid().split(",")) {
+        	if (!hash.trim().isEmpty()) checkpoints.add(hash.trim());
+        }
+        if (!checkpoints.isEmpty()) blockValidator.startSignatureBenchmark();
 
         // Create GUI and link both
         gui = new BlockchainGUI();
         gui.setAgent(this);
         gui.log("Agent " + getLocalName() + " initialized.");
         gui.setInfo("<html><b>Node: </b>" + getLocalName() + "</html>");
+        gui.log("Overlay " + topology.summary() + ". Neighbours: " + neighbours);
         
-        // Wallet generation for each user
+        // Wallet generation for each user (the key pair is kept on disk so the node keeps its address)
         try {
-			KeyPair keyPair = CryptoUtils.generateKeyPair();
+        	Files.createDirectories(dataDir);
+        	Path keyFile = dataDir.resolve("wallet.key");
+        	KeyPair keyPair;
+        	if (Files.exists(keyFile)) {
+        		keyPair = CryptoUtils.loadKeyPair(keyFile);
+        	} else {
+        		keyPair = CryptoUtils.generateKeyPair();
+        		CryptoUtils.saveKeyPair(keyPair, keyFile);
+        	}
 			wallet = new Wallet(keyPair, 0.0); 
 		    gui.log(getLocalName() + " wallet created.");
 		    
 		    // Generating the node's address (used for sending transaction).
-		    /* NOTE: In real Bitcoin, the function used for hashing the public key is RIPEMD160(sha256(pk)))
-		             However, in our simulation, we used sha256(sha256(pk))) for simplification */
-		    String pubKeyStr = Base64.getEncoder().encodeToString(wallet.getPublicKey().getEncoded());
-		    myAddress = CryptoUtils.hashData(CryptoUtils.hashData(pubKeyStr)).substring(0, 40);
+		    myAddress = CryptoUtils.addressOf(wallet.getPublicKey());
 		    
 		    gui.appendInfoLine("<b>Address: </b>" + myAddress);
 		    gui.appendInfoLine("<b>Balance: </b>" + wallet.getValue() + " BTC");
@@ -74,27 +175,34 @@ public class NodeAgent extends Agent {
 		    gui.appendInfoLine("<b>MemPool:</b> Empty");
 		    gui.appendInfoLine("<b>Blockchain:</b> Empty");
 		    
-		    // Creating an initial system transaction to award users initial balance from the system
-		    Transaction genesisTx = new Transaction(UUID.randomUUID().toString().substring(0, 8));
-		    genesisTx.setSenderHash("SYSTEM");
-		    genesisTx.setTimestamp(System.currentTimeMillis());
-		    
-		    TransactionOutput txOut = new TransactionOutput();
-		    TransactionOutput.Output out = new TransactionOutput.Output(
-		            10.0,      // value
-		            myAddress    // scriptPubKey = just address
-		    );
+		    // Restoring the chain of the previous run from disk
+		    loadBlockStore();
 		    
-		    txOut.getOutputList().add(out); // Add output to transaction output list
-		    txOut.setOutCounter(1); // set counter to 1
-		    genesisTx.setTxOutput(txOut); // set the created output inside Transaction
+		    // Creating an initial system transaction to award users initial balance from the system,
+		    // unless the reloaded chain already paid it
+		    if (!chain.isFunded(myAddress)) {
+			    Transaction genesisTx = new Transaction(UUID.randomUUID().toString().substring(0, 8));
+			    genesisTx.setSenderHash("SYSTEM");
+			    genesisTx.setTimestamp(System.currentTimeMillis());
+			    
+			    TransactionOutput txOut = new TransactionOutput();
+			    TransactionOutput.Output out = new TransactionOutput.Output(
+			            BlockValidator.SYSTEM_GRANT,      // value
+			            myAddress    // scriptPubKey = just address
+			    );
+			    
+			    txOut.getOutputList().add(out); // Add output to transaction output list
+			    txOut.setOutCounter(1); // set counter to 1
+			    genesisTx.setTxOutput(txOut); // set the created output inside Transaction
+			    
+			    updateMempool(genesisTx, "ADD"); // Add transaction to the mempool
+			    gui.log("Added system transaction to mempool.");
+			    
+			    broadcast(genesisTx, "SYSTEM_TRANSACTION"); // floods the overlay
+		    }
 		    
-		    updateMempool(genesisTx, "ADD"); // Add transaction to the mempool
-		    gui.log("Added system transaction to mempool.");
-		    
-		    // Broadcast public key and genesis transaction to all nodes
-	        broadcast(myAddress, "ADDRESS");
-	        broadcast(genesisTx, "SYSTEM_TRANSACTION");
+		    // Address goes to every node (it is needed to pay them)
+	        sendPayload(myAddress, "ADDRESS", otherNodes());
 		} catch (NoSuchAlgorithmException e) {
 			e.printStackTrace();
 		} catch (Exception e) {
@@ -102,77 +210,134 @@ public class NodeAgent extends Agent {
 			e.printStackTrace();
 		}
         
-        // Cyclic behaviours
-        addBehaviour(new CyclicBehaviour() {
+        // Periodic behaviours
+        addBehaviour(new TickerBehaviour(this, config.getMaintenanceIntervalMillis()) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void onTick() {
+				runMaintenance();
+			}
+		});
+        
+        addBehaviour(new TickerBehaviour(this, config.getMempoolDumpIntervalMillis()) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void onTick() {
+				dumpMempool(true);
+			}
+		});
+        
+        // Sending the batched inventory announcements
+        addBehaviour(new TickerBehaviour(this, config.getInvIntervalMillis()) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void onTick() {
+				flushAnnouncements();
+				continueSync();
+				retryCompactBlocks();
+				refreshMempoolDisplayIfChanged(); // sync, mining and mempool reload
+			}
+		});
+        
+        // Sending the transactions queued for each peer as batches
+        addBehaviour(new TickerBehaviour(this, config.getTxBatchWindowMillis()) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void onTick() {
+				flushTransactionBatches();
+			}
+		});
+        
+        // Incoming messages: taken from the JADE queue into per-sender queues (rate limits, byte budgets,
+        // block traffic first), decoded and checked by the pipeline workers, then applied here, on the
+        // agent thread, in the order they were passed to the pipeline
+        messageLoop = new CyclicBehaviour() {
 
 			private static final long serialVersionUID = 1L;
 
 			@Override
 			public void action() {
-				ACLMessage msg = receive();
-				if(msg != null) {
+				boolean busy = false;
+				
+				Runnable action;
+				while ((action = agentActions.poll()) != null) {
 					try {
-						// When receiving the address of another node
-						if("ADDRESS".equals(msg.getConversationId())) {
-							String address = (String) msg.getContentObject();
-							knownNodes.put(msg.getSender().getLocalName(), address);
-							gui.log("Received address from " + msg.getSender().getLocalName());
-						}
-						
-						// When receiving a transaction from other nodes
-						if ("TRANSACTION".equals(msg.getConversationId()) || 
-							"SYSTEM_TRANSACTION".equals(msg.getConversationId())) {
-						    Transaction tx = (Transaction) msg.getContentObject();
-
-						    boolean valid = verifyTransactionInputs(tx);
-						    if (!valid) {
-						        gui.log("Rejected invalid transaction " + tx.getId() + " from " + 
-						        		msg.getSender().getLocalName());
-						        return;
-						    }
-
-						    updateMempool(tx, "ADD");
-						    gui.log("Received valid transaction " + tx.getId() + " from " 
-						            + msg.getSender().getLocalName());
-						}
-						
-						// When receiving a new block
-						if ("BLOCK".equals(msg.getConversationId())) {
-						    Block block = (Block) msg.getContentObject();
-						    
-						    if(!verifyBlock(block)) {
-						    	gui.log("Rejected invalid block " + block.getId() + " from " + 
-						    			msg.getSender().getLocalName());
-						    	return;
-						    }
-						    
-						    for (Transaction tx : block.getTransactions()) {
-					            updateMempool(tx, "DELETE");
-					        }
-						    updateBlockchain(block, "ADD");
-						    applyBlockTransactions(block);
-						    adjustDifficulty(block);
-						    
-						    mining = false;
-						    currentBlock = block;
-						    gui.showCurrentBlock(displayBlockDetails(block).toString());
-						    
-						    gui.log("Received valid block " + block.getId() + " from " 
-						            + msg.getSender().getLocalName());
-						    gui.appendProofOfWork("A new block was received.");
-						}
+						action.run();
 					} catch (Exception e) {
 						e.printStackTrace();
 					}
-				} else {
-					block();
+					refreshMempoolDisplayIfChanged();
+					busy = true;
+				}
+				
+				for (MessagePipeline.Result result : pipeline.takeReady(MAX_APPLY_PER_STEP)) {
+					applyMessage(result);
+					busy = true;
+				}
+				
+				long now = System.currentTimeMillis();
+				ACLMessage msg;
+				while ((msg = receive()) != null) {
+					busy = true;
+					// Delivery failures reported by the platform, e.g. a node in a container not started yet
+					if (msg.getPerformative() == ACLMessage.FAILURE) {
+						metrics.increment("msg.failure");
+						continue;
+					}
+					// Copies of objects already processed are dropped from the header, without decoding them
+					if (isDuplicate(msg)) {
+						metrics.increment("dup.dropped." + msg.getConversationId());
+						continue;
+					}
+					for (ACLMessage dropped : inbound.offer(msg.getSender().getLocalName(), msg, messageSize(msg), 
+							priorityOf(msg), now)) {
+						metrics.increment("inbound.dropped." + dropped.getConversationId());
+					}
+				}
+				
+				while (pipeline.hasCapacity() && (msg = inbound.poll(now)) != null) {
+					pipeline.submit(msg);
+					busy = true;
 				}
 				
+				// Woken up by new messages or by the workers. Messages held back by a rate limit are
+				// retried after a short wait.
+				if (!busy) block(inbound.isEmpty() ? IDLE_WAIT_MILLIS : RATE_LIMIT_WAIT_MILLIS);
 			}
-		});
+		};
+        pipeline = new MessagePipeline(config.getPipelineWorkers(), config.getPipelineQueueSize(), 
+        		this::decodeMessage, () -> messageLoop.restart());
+        addBehaviour(messageLoop);
+        
+        // Restoring the MemPool of the previous run
+        startMempoolReload();
+        
+        // Catching up with the chain of a peer, in case this node starts late
+        if (!neighbours.isEmpty()) requestHeaders(neighbours.get(0));
     }
 
     // === Button-triggered methods ===
+    
+    // The node state (MemPool, chain, block tree, wallet) is only changed on the agent thread, by the
+    // message loop. The GUI posts its button actions here; their dialogs run on the Swing thread and
+    // post the user's answer back.
+    public void runOnAgentThread(Runnable action) {
+    	agentActions.add(action);
+    	if (messageLoop != null) messageLoop.restart();
+    }
+    
+    private void showDialog(Runnable dialog) {
+    	SwingUtilities.invokeLater(dialog);
+    }
+    
     public void createTransaction() {
         
     	// prompt the user for amount and recipient
@@ -183,7 +348,13 @@ public class NodeAgent extends Agent {
             return;
         }
     	
-    	Object[] userInput = gui.createTransactionDialog(recipients);
+    	showDialog(() -> {
+    		Object[] userInput = gui.createTransactionDialog(recipients);
+    		runOnAgentThread(() -> createTransaction(userInput));
+    	});
+    }
+    
+    private void createTransaction(Object[] userInput) {
         if (userInput == null) {
             gui.log("Transaction creation cancelled.");
             return;
@@ -191,6 +362,7 @@ public class NodeAgent extends Agent {
         
         String amountStr = (String) userInput[0];
         String recipientName = (String) userInput[1];
+        String feeStr = (String) userInput[2];
         
         double amount;
         try {
@@ -205,6 +377,21 @@ public class NodeAgent extends Agent {
             gui.log("Invalid amount.");
             return;
         }
+        
+        // The fee is implicit: whatever the inputs hold beyond the outputs goes to the miner
+        double fee = 0.0;
+        try {
+        	if (feeStr != null && !feeStr.isBlank()) fee = Double.parseDouble(feeStr);
+        	if (fee < 0) {
+        		gui.displayResult("The fee cannot be negative", false);
+        		gui.log("Invalid fee due to negative value.");
+        		return;
+        	}
+        } catch (Exception e) {
+        	gui.displayResult("The fee you entered is invalid.", false);
+        	gui.log("Invalid fee.");
+        	return;
+        }
 
         String recipientAddress = knownNodes.get(recipientName);
         if (recipientAddress == null) {
@@ -220,10 +407,10 @@ public class NodeAgent extends Agent {
         for (Map.Entry<String, TransactionOutput.Output> entry : wallet.getOutputs().entrySet()) {
         	selected.add(entry);
         	accumulated += entry.getValue().getValue();
-        	if (accumulated >= amount) break;
+        	if (accumulated >= amount + fee) break;
         }
         
-        if (accumulated < amount) {
+        if (accumulated < amount + fee) {
         	gui.displayResult("Not enough balance to create transaction.", false);
     	    gui.log("Not enough balance to create transaction.");
     	    return;
@@ -239,10 +426,7 @@ public class NodeAgent extends Agent {
         	 String prevTxId = entry.getKey(); // Get TxId of UTXO
         	 TransactionOutput.Output utxo = entry.getValue(); // get UTXO
         	 
-        	 List<Transaction> searchList = new ArrayList<>();
-        	 for (Block b : blockchain) searchList.addAll(b.getTransactions());
-        	 
-        	 int outputIndex = findOutputIndex(prevTxId, myAddress, searchList); // find index to put in Input
+        	 int outputIndex = findOutputIndex(prevTxId, myAddress); // find index to put in Input
         	 
         	 if (outputIndex == -1) {
         		 	gui.displayResult("Could not find output index for tx " + prevTxId, false);
@@ -266,7 +450,7 @@ public class NodeAgent extends Agent {
    	 	TransactionOutput.Output recipientOut = new TransactionOutput.Output(amount, recipientAddress);
 	   	txOut.getOutputList().add(recipientOut);
 	   	
-	   	double changeAmount = accumulated - amount;
+	   	double changeAmount = accumulated - amount - fee;
 
 	   	if (changeAmount > 0) {
 	   	    TransactionOutput.Output changeOut = new TransactionOutput.Output(changeAmount, myAddress);
@@ -294,11 +478,20 @@ public class NodeAgent extends Agent {
         }
 
         // Show dialog and get chosen transaction
-        Transaction chosen = gui.SendTransactionDialog(pendingTransactions, knownNodes, myAddress);
+        List<Transaction> pending = new ArrayList<>(pendingTransactions);
+        Map<String, String> nodes = new HashMap<>(knownNodes);
+        showDialog(() -> {
+        	Transaction chosen = gui.SendTransactionDialog(pending, nodes, myAddress);
+        	runOnAgentThread(() -> sendTransaction(chosen));
+        });
+    }
+    
+    private void sendTransaction(Transaction chosen) {
         if (chosen == null) {
             gui.log("No transaction selected.");
             return;
         }
+        if (!pendingTransactions.contains(chosen)) return; // deleted meanwhile
         
         // Verify if the node has enough balance before sending
         double valueSum = 0.0;
@@ -310,7 +503,7 @@ public class NodeAgent extends Agent {
         	}
         }
         
-        for (Transaction tx : mempool) {
+        for (Transaction tx : mempool.getTransactions()) {
             if (tx.getSenderHash().equals(myAddress)) {
                 for (TransactionOutput.Output out : tx.getTxOutput().getOutputList()) {
                     if (!out.getScriptPubKey().equals(myAddress)) {
@@ -330,16 +523,10 @@ public class NodeAgent extends Agent {
         // Set the Tx timestamp
         chosen.setTimestamp(System.currentTimeMillis());
 
-        // Set Base header String
-        String baseHeader = chosen.getId()
-                + "|" + chosen.getVersion()
-                + "|" + chosen.getSenderHash()
-                + "|" + chosen.getTimestamp();
-
         // Signing every input in the transaction
         try {
             for (TransactionInput.Input in : chosen.getTxInput().getInputList()) {
-                String perInput = baseHeader + "|IN" + in.getPrevTxId() + in.getIndex();
+                String perInput = chosen.getSigningData(in);
 
                 // hash before signing
                 String digest = CryptoUtils.hashData(perInput);
@@ -359,27 +546,35 @@ public class NodeAgent extends Agent {
         }
 
         // Move tx from pending -> mempool
+        if (!updateMempool(chosen, "ADD")) {
+        	gui.log("Transaction " + chosen.getId() + " was refused by the mempool: " 
+        			+ mempool.getRejectReason());
+        	gui.displayResult("Transaction [" + chosen.getId() + "] was refused: " 
+        			+ mempool.getRejectReason(), false);
+        	return;
+        }
         pendingTransactions.removeIf(t -> t.getId().equals(chosen.getId()));
-        updateMempool(chosen, "ADD");
 
-        // Broadcast signed transaction
-        broadcast(chosen, "TRANSACTION");
+        // Announce the signed transaction, peers will fetch it
+        seenFilter.add(chosen.getId());
+        announce(Inventory.TX, chosen.getId(), null);
         
         gui.log("Transaction " + chosen.getId() + " has been sent");
         gui.displayResult("Transaction [" + chosen.getId() + "] has been sent", true);
     }
 
     public void createBlock() {
-        // Pick transactions for the block
-    	int maxTx = Math.min(4, mempool.size());
-    	List<Transaction> txsForBlock = new ArrayList<>(mempool.subList(0, maxTx));
+        // Pick the transaction packages paying the highest fee rate that fit in the block
+    	BlockTemplateBuilder builder = new BlockTemplateBuilder(config.getBlockMaxSize(), 
+    			config.getBlockMaxSigOps(), config.getTemplateBuildMillis());
+    	List<Transaction> txsForBlock = builder.build(mempool);
     	
     	// Determine Previous Block hash
     	String prevHash;
-    	if(blockchain.isEmpty()) {
-    		prevHash = "ON BRINK OF COLLAPSE " + LocalDateTime.now().toLocalDate().toString();
+    	if(chain.isEmpty()) {
+    		prevHash = Block.GENESIS_MARKER + LocalDateTime.now().toLocalDate().toString();
     	} else {
-    		prevHash = blockchain.get(blockchain.size() - 1).getHashHeaderBlock();
+    		prevHash = chain.getTipHash();
     	}
     	
     	// Creating the block object
@@ -397,7 +592,7 @@ public class NodeAgent extends Agent {
 	    coinbaseTx.setTxInput(coinIn);
 	    
 	    TransactionOutput coinOut = new TransactionOutput();
-	    double reward = MINING_REWARD;
+	    double reward = blockReward(chain.size()) + builder.getTotalFees(); // block subsidy + collected fees
 	    coinOut.getOutputList().add(new TransactionOutput.Output(reward, currentBlock.getSender()));
 	    coinOut.setOutCounter(1);
 	    coinbaseTx.setTxOutput(coinOut);
@@ -415,7 +610,8 @@ public class NodeAgent extends Agent {
 
         gui.displayResult("Your new block [" + currentBlock.getId() + "] has been "
         		+ "successfully created with " + txsForBlock.size() + " transactions", true);
-        gui.log("New block created with " + txsForBlock.size() + " transactions.");
+        gui.log("New block created with " + txsForBlock.size() + " transactions (" 
+        		+ builder.getTotalSize() + " bytes, fees " + builder.getTotalFees() + " BTC).");
     }
     
     public void sendBlock() {
@@ -427,10 +623,7 @@ public class NodeAgent extends Agent {
         }
     	
     	// Verify that the block is not already added to the blockchain by other nodes
-    	boolean block_exists = blockchain.stream()
-    	        .anyMatch(b -> b.getId().equals(currentBlock.getId()));
-
-    	if (block_exists) {
+    	if (blockTree.contains(currentBlock.getHashHeaderBlock())) {
     	    gui.log("Block already exists in the blockchain.");
     	    gui.displayResult("The Block already exists in the blockchain. Please create a new one!", false);
     	    return;
@@ -448,18 +641,27 @@ public class NodeAgent extends Agent {
     	    return;
     	}
     	
-    	// Applying all block transactions
-    	applyBlockTransactions(currentBlock);
-    	
-    	// Adding the block to the blockchain and updating the mempool
-    	for (Transaction tx : currentBlock.getTransactions()) {
-            updateMempool(tx, "DELETE");
-        }
-    	updateBlockchain(currentBlock, "ADD");
-    	adjustDifficulty(currentBlock);
+    	// Adding the block to the block tree, it becomes the tip unless a heavier branch showed up
+    	BlockTree.Node node = blockTree.add(currentBlock);
+    	if (node == null) {
+    		gui.log("Block " + currentBlock.getId() + " does not build on a known block.");
+    		gui.displayResult("The Block does not build on the current chain anymore. Please create a new one!", false);
+    		return;
+    	}
+    	activateBestChain();
+    	seenFilter.add(currentBlock.getHashHeaderBlock());
+    	if (blockTree.isInvalid(currentBlock.getHashHeaderBlock())) {
+    		gui.displayResult("Block [" + currentBlock.getId() + "] is invalid, see the log.", false);
+    		return;
+    	}
+    	if (blockTree.getTip() != node) {
+    		gui.log("Block " + currentBlock.getId() + " kept on a side branch, a heavier chain is known.");
+    		gui.displayResult("Block [" + currentBlock.getId() + "] lost against a heavier chain.", false);
+    		return;
+    	}
     	
-    	// Broadcast the block to peers
-    	broadcast(currentBlock, "BLOCK");
+    	// Relay the block to peers right away, they rebuild it from their MemPool
+    	relayCompactBlock(currentBlock, null);
 
     	gui.log("Block " + currentBlock.getId() + " has been sent.");
         gui.displayResult("Block [" + currentBlock.getId() + "] has been sent to peers.", true);
@@ -510,7 +712,14 @@ public class NodeAgent extends Agent {
     
     public void deleteTransaction() {
     	
-    	Transaction chosen = gui.deleteTransactionDialog(pendingTransactions);
+    	List<Transaction> pending = new ArrayList<>(pendingTransactions);
+    	showDialog(() -> {
+    		Transaction chosen = gui.deleteTransactionDialog(pending);
+    		runOnAgentThread(() -> deleteTransaction(chosen));
+    	});
+    }
+    
+    private void deleteTransaction(Transaction chosen) {
         if (chosen == null) {
         	gui.displayResult("No pending transactions to delete were found.", false);
         	gui.log("No pending transactions to delete.");
@@ -524,12 +733,14 @@ public class NodeAgent extends Agent {
     }
 
     public void verifyTransaction() {
-    	List<Transaction> allTxs = new ArrayList<>();
-    	allTxs.addAll(mempool);
-    	for (Block b : blockchain) allTxs.addAll(b.getTransactions());
-    	
-    	Transaction chosen = gui.verifyTransactionDialog(mempool); // Combine mempool + blockchain txs
-        if (chosen == null) return;
+    	List<Transaction> txs = mempool.getTransactions();
+    	showDialog(() -> {
+    		Transaction chosen = gui.verifyTransactionDialog(txs);
+    		if (chosen != null) runOnAgentThread(() -> verifyTransaction(chosen));
+    	});
+    }
+    
+    private void verifyTransaction(Transaction chosen) {
 
         boolean valid;
 
@@ -537,7 +748,7 @@ public class NodeAgent extends Agent {
         if ("SYSTEM".equals(chosen.getSenderHash())) {
             valid = true;
         } else {
-            valid = verifyTransactionInputs(chosen);
+            valid = verifyTransactionInputs(chosen) && isSignedByOwners(chosen);
         }
 
         gui.displayResult(
@@ -548,11 +759,51 @@ public class NodeAgent extends Agent {
     
     // Broadcasting messages to other nodes
     private void broadcast(Object payload, String conversationId) {
+        sendPayload(payload, conversationId, peers());
+        gui.log("Broadcasted " + conversationId + " to peers.");
+    }
+    
+    // Sending a message to the given nodes
+    private void sendPayload(Object payload, String conversationId, Collection<String> receivers) {
+    	String objectIds = null;
+    	if (payload instanceof Transaction) objectIds = ((Transaction) payload).getId();
+    	if (payload instanceof Block) objectIds = ((Block) payload).getHashHeaderBlock();
+    	sendPayload(payload, conversationId, receivers, objectIds);
+    }
+    
+    // objectIds: comma-separated ids of the transactions or blocks carried, or null
+    private void sendPayload(Object payload, String conversationId, Collection<String> receivers, String objectIds) {
+    	sendPayload(payload, conversationId, receivers, objectIds, null);
+    }
+    
+    // sentAt: for a block, when its miner first sent it (SENT_AT_PARAM), or null
+    private void sendPayload(Object payload, String conversationId, Collection<String> receivers, String objectIds,
+    		Long sentAt) {
+        if (receivers.isEmpty()) return;
+        
         ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
         msg.setConversationId(conversationId);
+        if (objectIds != null) msg.addUserDefinedParameter(OBJECT_IDS_PARAM, objectIds);
+        if (sentAt != null) msg.addUserDefinedParameter(SENT_AT_PARAM, Long.toString(sentAt));
+        if ("ADDRESS".equals(conversationId)) {
+        	msg.addUserDefinedParameter(ACCEPT_COMPRESSION_PARAM, String.join(",", Compression.getNames()));
+        }
 
+        byte[] encoded = null;
         try {
-            if (payload instanceof Serializable) {
+        	// Blocks and transactions travel in the compact binary encoding
+            if (payload instanceof Transaction) {
+            	encoded = WireCodec.encodeTransaction((Transaction) payload);
+            } else if (payload instanceof Block) {
+            	encoded = WireCodec.encodeBlock((Block) payload);
+            } else if (payload instanceof byte[]) {
+            	encoded = (byte[]) payload;
+            }
+            
+            if (encoded != null) {
+            	encoded = compress(msg, encoded, receivers);
+            	msg.setByteSequenceContent(encoded);
+            } else if (payload instanceof Serializable) {
                 msg.setContentObject((Serializable) payload);
             } else {
                 // fallback: send as plain text
@@ -563,26 +814,1039 @@ public class NodeAgent extends Agent {
             return;
         }
 
-        for (String nodeName : allNodeNames) {
-            if (!nodeName.equals(getLocalName())) {
-                msg.addReceiver(new AID(nodeName, AID.ISLOCALNAME));
-            }
+        for (String nodeName : receivers) {
+            msg.addReceiver(new AID(nodeName, AID.ISLOCALNAME));
         }
 
         send(msg);
-        gui.log("Broadcasted " + conversationId + " to peers.");
+        metrics.add("msg.out." + conversationId, receivers.size());
+        if (encoded != null) metrics.add("bytes.out." + conversationId, (long) encoded.length * receivers.size());
+    }
+    
+    // === Incoming message pipeline ===
+    
+    // Block traffic is served before transaction and inventory traffic
+    private int priorityOf(ACLMessage msg) {
+    	String conv = msg.getConversationId();
+    	if ("BLOCK".equals(conv) || "CMPCTBLOCK".equals(conv) || "GETBLOCKTXN".equals(conv) 
+    			|| "BLOCKTXN".equals(conv) || "GETHEADERS".equals(conv) || "HEADERS".equals(conv)) {
+    		return InboundQueues.HIGH;
+    	}
+    	return InboundQueues.LOW;
+    }
+    
+    private int messageSize(ACLMessage msg) {
+    	byte[] content = msg.getByteSequenceContent();
+    	if (content != null) return content.length;
+    	return msg.getContent() != null ? msg.getContent().length() : 0;
+    }
+    
+    // Transactions decoded by a worker, with the result of their signature checks
+    private static class CheckedTransactions {
+    	private final List<Transaction> txs;
+    	private final List<Boolean> valid;
+    	
+    	CheckedTransactions(List<Transaction> txs, List<Boolean> valid) {
+    		this.txs = txs;
+    		this.valid = valid;
+    	}
+    }
+    
+    // Worker stage: decoding the content and checking transaction signatures.
+    // Runs on the pipeline threads, so it must not touch the node state.
+    private Object decodeMessage(ACLMessage msg) throws Exception {
+    	String conv = msg.getConversationId();
+    	byte[] content = msg.getByteSequenceContent();
+    	String compression = msg.getUserDefinedParameter(COMPRESSION_PARAM);
+    	if (content != null && compression != null) content = Compression.decompress(compression, content);
+    	
+    	if ("ADDRESS".equals(conv)) return msg.getContentObject();
+    	if ("INV".equals(conv) || "GETDATA".equals(conv)) return WireCodec.decodeInventory(content);
+    	
+    	if ("TRANSACTION".equals(conv) || "SYSTEM_TRANSACTION".equals(conv) || "TRANSACTIONS".equals(conv)) {
+    		List<Transaction> txs = "TRANSACTIONS".equals(conv) ? WireCodec.decodeTransactions(content) 
+    				: Collections.singletonList(WireCodec.decodeTransaction(content));
+    		List<Boolean> valid = new ArrayList<>(txs.size());
+    		for (Transaction tx : txs) valid.add(verifyTransactionInputs(tx));
+    		return new CheckedTransactions(txs, valid);
+    	}
+    	
+    	if ("BLOCK".equals(conv)) return WireCodec.decodeBlock(content);
+    	if ("GETHEADERS".equals(conv)) return WireCodec.decodeGetHeaders(content);
+    	if ("HEADERS".equals(conv)) return WireCodec.decodeHeaders(content);
+    	if ("CMPCTBLOCK".equals(conv)) return WireCodec.decodeCompactBlock(content);
+    	if ("GETBLOCKTXN".equals(conv) || "BLOCKTXN".equals(conv)) return WireCodec.decodeBlockTxns(content);
+    	if ("GETPROOFS".equals(conv)) return WireCodec.decodeGetProofs(content);
+    	return null;
+    }
+    
+    // Apply stage: the only place incoming messages change the node state, on the agent thread
+    @SuppressWarnings("unchecked")
+    private void applyMessage(MessagePipeline.Result result) {
+    	ACLMessage msg = result.getMsg();
+    	String conv = msg.getConversationId();
+    	String from = msg.getSender().getLocalName();
+    	if (result.getError() != null) {
+    		metrics.increment("msg.undecodable");
+    		gui.log("Dropped unreadable " + conv + " message from " + from + ": " + result.getError().getMessage());
+    		return;
+    	}
+    	Object value = result.getValue();
+    	
+    	try {
+	    	// When receiving the address of another node
+	    	if ("ADDRESS".equals(conv)) {
+	    		// A node we did not know yet may have started after us and missed our own address
+	    		if (knownNodes.put(from, (String) value) == null) {
+	    			sendPayload(myAddress, "ADDRESS", Collections.singletonList(from));
+	    		}
+	    		String accepted = msg.getUserDefinedParameter(ACCEPT_COMPRESSION_PARAM);
+	    		if (accepted != null) peerCompression.put(from, new HashSet<>(Arrays.asList(accepted.split(","))));
+	    		gui.log("Received address from " + from);
+	    	}
+	    	
+	    	// When a peer announces objects it has, or asks for objects we announced
+	    	if ("INV".equals(conv)) handleInventory((List<Inventory.Item>) value, from);
+	    	if ("GETDATA".equals(conv)) handleGetData((List<Inventory.Item>) value, from);
+	    	
+	    	// When receiving transactions from other nodes
+	    	if ("TRANSACTION".equals(conv) || "SYSTEM_TRANSACTION".equals(conv) || "TRANSACTIONS".equals(conv)) {
+	    		CheckedTransactions checked = (CheckedTransactions) value;
+	    		receiveTransactions(checked.txs, checked.valid, from);
+	    	}
+	    	
+	    	// When receiving a new block
+	    	if ("BLOCK".equals(conv)) {
+	    		Block block = (Block) value;
+	    		rememberSentAt(block.getHashHeaderBlock(), msg);
+	    		Inventory.Item item = new Inventory.Item(Inventory.BLOCK, block.getHashHeaderBlock());
+	    		inventory.received(item);
+	    		inventory.markKnown(from, item);
+	    		if (headerSync.blockArrived(block)) {
+	    			continueSync();
+	    		} else {
+	    			receiveBlock(block, from, true);
+	    		}
+	    	}
+	    	
+	    	// Chain synchronisation: header chain requests and answers
+	    	if ("GETHEADERS".equals(conv)) handleGetHeaders((List<String>) value, from);
+	    	if ("HEADERS".equals(conv)) receiveHeaders((List<Block>) value, from);
+	    	
+	    	// When a new block is relayed as a compact block, or its missing transactions are exchanged
+	    	if ("CMPCTBLOCK".equals(conv)) {
+	    		rememberSentAt(((CompactBlock) value).getHeader().getHashHeaderBlock(), msg);
+	    		receiveCompactBlock((CompactBlock) value, from);
+	    	}
+	    	if ("GETBLOCKTXN".equals(conv)) handleGetBlockTxn((CompactBlock.BlockTxns) value, from);
+	    	if ("BLOCKTXN".equals(conv)) receiveBlockTxn((CompactBlock.BlockTxns) value, from);
+	    	
+	    	// A light node asking for the payments to its address
+	    	if ("GETPROOFS".equals(conv)) handleGetProofs((MerkleProof.Request) value, from);
+    	} catch (Exception e) {
+    		e.printStackTrace();
+    	}
+    	refreshMempoolDisplayIfChanged();
+    }
+    
+    // True if every object a message carries was already processed. Only object messages are checked:
+    // requests (GETDATA, GETBLOCKTXN, ...) must always be answered.
+    private boolean isDuplicate(ACLMessage msg) {
+    	String conv = msg.getConversationId();
+    	if (!"TRANSACTION".equals(conv) && !"SYSTEM_TRANSACTION".equals(conv) && !"TRANSACTIONS".equals(conv)
+    			&& !"BLOCK".equals(conv) && !"CMPCTBLOCK".equals(conv)) {
+    		return false;
+    	}
+    	
+    	String ids = msg.getUserDefinedParameter(OBJECT_IDS_PARAM);
+    	if (ids == null || ids.isEmpty()) return false;
+    	for (String id : ids.split(",")) {
+    		if (!seenFilter.contains(id)) return false;
+    	}
+    	return true;
+    }
+    
+    // Compressing a large payload with the configured codec, if every receiver accepts it and it saves bytes
+    private byte[] compress(ACLMessage msg, byte[] encoded, Collection<String> receivers) throws IOException {
+    	Compression.Codec codec = Compression.get(config.getCompression());
+    	if (codec == null || encoded.length < config.getCompressionThreshold()) return encoded;
+    	for (String receiver : receivers) {
+    		Set<String> accepted = peerCompression.get(receiver);
+    		if (accepted == null || !accepted.contains(codec.getName())) return encoded;
+    	}
+    	
+    	byte[] compressed = codec.compress(encoded);
+    	if (compressed.length >= encoded.length) return encoded;
+    	msg.addUserDefinedParameter(COMPRESSION_PARAM, codec.getName());
+    	metrics.add("compression.savedBytes", (long) (encoded.length - compressed.length) * receivers.size());
+    	return compressed;
+    }
+    
+    // Overlay neighbours: new objects are relayed to them and flood the network hop by hop
+    private List<String> peers() {
+    	return new ArrayList<>(neighbours);
+    }
+    
+    // All the other nodes of the network
+    private List<String> otherNodes() {
+    	List<String> nodes = new ArrayList<>();
+    	for (String nodeName : allNodeNames) {
+    		if (!nodeName.equals(getLocalName())) nodes.add(nodeName);
+    	}
+    	return nodes;
+    }
+    
+    // === Inventory gossip (INV / GETDATA) ===
+    
+    // Queueing an announcement of a new object to every peer but the one it came from
+    private void announce(byte type, String id, String from) {
+    	List<String> targets = peers();
+    	targets.remove(from);
+    	for (String peer : inventory.announce(new Inventory.Item(type, id), targets)) {
+    		flushAnnouncements(peer);
+    	}
+    }
+    
+    private void flushAnnouncements() {
+    	for (String peer : inventory.peersWithQueuedItems()) {
+    		flushAnnouncements(peer);
+    	}
+    	inventory.pruneExpiredRequests(System.currentTimeMillis());
+    }
+    
+    private void flushAnnouncements(String peer) {
+    	List<Inventory.Item> batch;
+    	while (!(batch = inventory.drain(peer)).isEmpty()) {
+    		sendPayload(WireCodec.encodeInventory(batch), "INV", Collections.singletonList(peer));
+    		metrics.add("inv.announced", batch.size());
+    	}
+    }
+    
+    // A peer announced objects: request the ones we do not have and nobody is sending us yet
+    private void handleInventory(List<Inventory.Item> items, String from) {
+    	List<Inventory.Item> wanted = new ArrayList<>();
+    	long now = System.currentTimeMillis();
+    	for (Inventory.Item item : items) {
+    		inventory.markKnown(from, item);
+    		if (!haveObject(item) && inventory.startRequest(item, now)) {
+    			wanted.add(item);
+    		}
+    	}
+    	
+    	if (!wanted.isEmpty()) {
+    		sendPayload(WireCodec.encodeInventory(wanted), "GETDATA", Collections.singletonList(from));
+    		metrics.add("inv.requested", wanted.size());
+    	}
+    }
+    
+    // A peer requested objects we announced: send each one to it only
+    private void handleGetData(List<Inventory.Item> items, String from) {
+    	for (Inventory.Item item : items) {
+    		if (item.getType() == Inventory.TX) {
+    			Mempool.Entry entry = mempool.get(item.getId());
+    			if (entry != null && txBatcher.add(from, entry.getTx(), System.currentTimeMillis())) {
+    				sendTransactionBatch(from);
+    			}
+    		} else if (item.getType() == Inventory.BLOCK) {
+    			BlockTree.Node node = blockTree.get(item.getId());
+    			Block block = node == null ? null : blockTree.getBlock(node);
+    			if (block != null) {
+    				sendPayload(block, "BLOCK", Collections.singletonList(from), block.getHashHeaderBlock(), 
+    						blockSentAt.get(item.getId()));
+    			}
+    		}
+    	}
+    }
+    
+    private void rememberSentAt(String blockHash, ACLMessage msg) {
+    	String sentAt = msg.getUserDefinedParameter(SENT_AT_PARAM);
+    	if (sentAt == null || blockSentAt.containsKey(blockHash)) return;
+    	try {
+    		blockSentAt.put(blockHash, Long.parseLong(sentAt));
+    	} catch (NumberFormatException e) {
+    		// not stamped then
+    	}
+    }
+    
+    private boolean haveObject(Inventory.Item item) {
+    	if (item.getType() == Inventory.TX) {
+    		return mempool.contains(item.getId()) || orphanPool.contains(item.getId()) 
+    				|| chain.containsTx(item.getId());
+    	}
+    	return blockTree.contains(item.getId());
+    }
+    
+    // Verifying a block received from a peer and adding it to the block tree. If its branch now has the
+    // most work the node switches to it, and the block is relayed further.
+    // Returns true if the block was accepted (on the active chain or on a side branch).
+    private boolean receiveBlock(Block block, String from, boolean relay) {
+    	if (blockTree.contains(block.getHashHeaderBlock())) return false;
+    	if (blockTree.isInvalid(block.getHashHeaderBlock()) || blockTree.isInvalid(block.getHashPrevBlock())) {
+    		gui.log("Rejected block " + block.getId() + " from " + from + " (invalid branch)");
+    		return false;
+    	}
+    	if (isAheadOfTip(block, from)) return false;
+    	
+	    if(!verifyBlock(block)) {
+	    	gui.log("Rejected invalid block " + block.getId() + " from " + from);
+	    	return false;
+	    }
+	    
+	    // Parent only known as a header yet: the sync connects it once the bodies are in
+	    BlockTree.Node node = blockTree.add(block);
+	    if (node == null) return false;
+	    seenFilter.add(block.getHashHeaderBlock());
+	    
+	    activateBestChain();
+	    if (blockTree.isInvalid(block.getHashHeaderBlock())) return false;
+	    if (blockTree.getTip() != node) {
+	    	metrics.increment("block.sideBranch");
+	    	gui.log("Received block " + block.getId() + " from " + from + ", kept on a side branch.");
+	    	return true;
+	    }
+	    
+	    mining = false;
+	    currentBlock = block;
+	    gui.showCurrentBlock(displayBlockDetails(block).toString());
+	    
+	    gui.log("Received valid block " + block.getId() + " from " + from);
+	    gui.appendProofOfWork("A new block was received.");
+	    
+	    if (relay) {
+	    	// From the miner sending the block, not from its timestamp (set when mining started)
+	    	Long sentAt = blockSentAt.get(block.getHashHeaderBlock());
+	    	if (sentAt != null) metrics.set("block.lastPropagationMs", System.currentTimeMillis() - sentAt);
+	    	relayCompactBlock(block, from);
+	    }
+	    return true;
+    }
+    
+    // === Fork choice (block tree, reorganisations) ===
+    
+    // Making the branch with the most cumulative work the active chain. Only the blocks between the
+    // fork point and the two tips are touched, so a reorg costs its depth, not the chain length.
+    // A block failing validation is dropped with its descendants and the next best branch is tried.
+    private void activateBestChain() {
+    	if (!checkpoints.isEmpty()) markAssumedValid();
+    	List<Block> disconnected = new ArrayList<>();
+    	int connected = 0;
+    	while (blockTree.getBest() != blockTree.getTip()) {
+    		BlockTree.Node tip = blockTree.getTip();
+    		BlockTree.Node best = blockTree.getBest();
+    		BlockTree.Node fork = BlockTree.findFork(tip, best);
+    		if (!canReorganise(tip, fork, best)) {
+    			metrics.increment("reorg.refused");
+    			gui.log("Ignoring a heavier branch forking at height " + (fork == null ? 0 : fork.getHeight() + 1) 
+    					+ ", below the pruned height " + prunedHeight + ".");
+    			blockTree.removeBranch(BlockTree.pathFrom(fork, best).get(0));
+    			continue;
+    		}
+    		for (BlockTree.Node n = tip; n != fork; n = n.getParent()) {
+    			disconnectBlock(n);
+    			disconnected.add(0, blockTree.getBlock(n));
+    		}
+    		for (BlockTree.Node n : BlockTree.pathFrom(fork, best)) {
+    			if (!connectBlock(n)) {
+    				blockTree.removeBranch(n);
+    				break;
+    			}
+    			connected++;
+    		}
+    	}
+    	if (disconnected.isEmpty()) return;
+    	
+    	// Transactions of the abandoned blocks go back to the MemPool, parents first, unless the new
+    	// chain confirmed them too. Coinbases are gone with their block.
+    	int readmitted = 0;
+    	for (Block block : disconnected) {
+    		for (int i = 1; i < block.getTransactions().size(); i++) {
+    			Transaction tx = block.getTransactions().get(i);
+    			if (!chain.containsTx(tx.getId()) && admitTransaction(tx, "reorg", true)) readmitted++;
+    		}
+    	}
+    	
+    	metrics.increment("reorg.count");
+    	metrics.set("reorg.depth", disconnected.size());
+    	metrics.set("reorg.maxDepth", Math.max(metrics.get("reorg.maxDepth"), disconnected.size()));
+    	gui.log("Chain reorganisation: " + disconnected.size() + " blocks disconnected, " 
+    			+ connected + " connected, " + readmitted + " transactions back in the MemPool.");
+    }
+    
+    // Once the header of an assume-valid checkpoint is known (from the block store, a headers batch
+    // being synced or a block), the checkpoint and every block between it and the active chain skip
+    // their signature checks when connected. The UTXO set and the structure of the blocks are still checked.
+    private void markAssumedValid() {
+    	for (Iterator<String> it = checkpoints.iterator(); it.hasNext(); ) {
+    		Block header = knownHeader(it.next());
+    		if (header == null) continue;
+    		it.remove();
+    		while (header != null && !chain.contains(header.getHashHeaderBlock())
+    				&& assumedValid.add(header.getHashHeaderBlock())) {
+    			header = knownHeader(header.getHashPrevBlock());
+    		}
+    		gui.log("Assume-valid checkpoint found, " + assumedValid.size() + " blocks will skip signature checks.");
+    	}
+    }
+    
+    // Header of a block waiting to be downloaded or in the block tree, null if unknown
+    private Block knownHeader(String hash) {
+    	Block header = headerSync.getHeader(hash);
+    	if (header != null) return header;
+    	BlockTree.Node node = blockTree.get(hash);
+    	return node == null ? null : node.getHeader();
+    }
+    
+    // The time saved is estimated from the number of signatures and the time one check takes here
+    private void countSkippedSignatures(Block block) {
+    	double signatureMicros = blockValidator.getSignatureMicros();
+    	metrics.increment("assumeValid.blocks");
+    	metrics.add("assumeValid.skippedSigOps", block.countSigOps());
+    	long savedMs = Math.round(metrics.get("assumeValid.skippedSigOps") * signatureMicros / 1000);
+    	metrics.set("assumeValid.savedMs", savedMs);
+    	if (assumedValid.isEmpty()) {
+    		gui.log("Assume-valid: " + metrics.get("assumeValid.blocks") + " blocks connected without checking "
+    				+ metrics.get("assumeValid.skippedSigOps") + " signatures, about " + savedMs + " ms saved.");
+    	}
+    }
+    
+    // Blocks to disconnect need their undo data, blocks to connect their body: both are gone for
+    // pruned blocks
+    private boolean canReorganise(BlockTree.Node tip, BlockTree.Node fork, BlockTree.Node best) {
+    	for (BlockTree.Node n = tip; n != fork; n = n.getParent()) {
+    		if (!blockTree.hasUndo(n)) return false;
+    	}
+    	for (BlockTree.Node n : BlockTree.pathFrom(fork, best)) {
+    		if (blockTree.isPruned(n)) return false;
+    	}
+    	return true;
+    }
+    
+    // Validating a block against the UTXO set of its parent and connecting it. Returns false if it is invalid.
+    private boolean connectBlock(BlockTree.Node node) {
+    	Block block = blockTree.getBlock(node);
+    	boolean trusted = assumedValid.remove(node.getHash());
+    	long start = System.nanoTime();
+    	String error = blockValidator.validate(block, utxoSet, chain.getFunded(), blockReward(node.getHeight()), !trusted);
+    	long micros = (System.nanoTime() - start) / 1000;
+    	metrics.set("block.lastValidationMicros", micros);
+    	metrics.add("block.validationMicros", micros);
+    	metrics.increment("block.validated");
+    	if (error != null) {
+    		metrics.increment("block.invalid");
+    		gui.log("Rejected block " + block.getId() + ": " + error);
+    		return false;
+    	}
+    	if (trusted) countSkippedSignatures(block);
+    	
+    	confirmBlockInMempool(block);
+    	updateBlockchain(block, "ADD");
+    	blockTree.setUndo(node, applyBlockTransactions(block));
+    	resolveOrphans(block);
+    	if (!headerSync.isActive()) readmitReloaded(false); // during a sync, once it is finished
+    	adjustDifficulty(block);
+    	blockTree.setTip(node);
+    	blockTree.releaseBody(node);
+    	if (config.getPruneKeepBlocks() > 0) pruneBlocks();
+    	return true;
+    }
+    
+    // Reversing connectBlock with the outputs recorded when the block was connected: the cost depends
+    // on the size of the block only
+    private void disconnectBlock(BlockTree.Node node) {
+    	Block block = blockTree.getBlock(node);
+    	List<UtxoSet.SpentOutput> undo = new ArrayList<>(blockTree.getUndo(node));
+    	List<Transaction> txs = block.getTransactions();
+    	for (int i = txs.size() - 1; i >= 0; i--) {
+    		Transaction tx = txs.get(i);
+    		int inputs = tx.getTxInput().getInputList().size();
+    		List<UtxoSet.SpentOutput> spent = new ArrayList<>(undo.subList(undo.size() - inputs, undo.size()));
+    		utxoSet.undoTransaction(tx, undo);
+    		
+    		// Outputs paying me are gone, outputs I spent are mine again
+    		for (TransactionOutput.Output out : tx.getTxOutput().getOutputList()) {
+    			if (out.getScriptPubKey().equals(myAddress)) {
+    				wallet.removeOutput(tx.getId());
+    				wallet.setValue(wallet.getValue() - out.getValue());
+    			}
+    		}
+    		if (tx.getSenderHash().equals(myAddress)) {
+    			for (UtxoSet.SpentOutput s : spent) {
+    				if (s.getOutput() != null && s.getOutput().getScriptPubKey().equals(myAddress)) {
+    					wallet.addOutput(s.getTxId(), s.getOutput());
+    					wallet.setValue(wallet.getValue() + s.getOutput().getValue());
+    				}
+    			}
+    		}
+    	}
+    	gui.updateInfoLine("Balance", wallet.getValue() + " BTC");
+    	
+    	blockTree.setTip(node.getParent());
+    	updateBlockchain(block, "DELETE");
+    	TARGET_VALUE = node.getParent() == null ? INITIAL_TARGET : nextTarget(node.getParent().getHeader());
+    }
+    
+    // === Pruning ===
+    
+    // Pruning mode keeps the bodies of the last pruneKeepBlocks blocks only. Older blocks can no longer
+    // be disconnected: their undo data and transaction index entries are dropped, and the store
+    // segments holding them are deleted in the background, once a UTXO snapshot covers them (after a
+    // restart the snapshot replaces the pruned bodies).
+    private void pruneBlocks() {
+    	int pruneHeight = blockTree.getTip().getHeight() - config.getPruneKeepBlocks();
+    	for (int h = prunedHeight + 1; h <= pruneHeight; h++) {
+    		BlockTree.Node old = blockTree.get(chain.getHash(h));
+    		Block body = blockTree.getBlock(old);
+    		if (body != null) chain.forgetTransactions(body);
+    		blockTree.forgetUndo(old);
+    		prunedHeight = h;
+    	}
+    	
+    	boolean needSnapshot = false;
+    	for (int segment : blockTree.getSegments()) {
+    		int maxHeight = blockTree.getMaxHeight(segment);
+    		if (segment >= blockStore.getCurrentSegment() || maxHeight > prunedHeight) break;
+    		if (maxHeight > snapshotHeight) {
+    			needSnapshot = true;
+    			break;
+    		}
+    		
+    		blockTree.pruneSegment(segment);
+    		metrics.increment("prune.segments");
+    		storageExecutor.execute(() -> {
+    			try {
+    				blockStore.deleteSegment(segment);
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    			}
+    		});
+    		gui.log("Pruned block file " + segment + " (blocks up to height " + maxHeight + ").");
+    	}
+    	if (needSnapshot && !snapshotPending) saveUtxoSnapshot(true);
+    }
+    
+    // The UTXO set is copied on the agent thread, the write can be left to the storage thread
+    private void saveUtxoSnapshot(boolean background) {
+    	BlockTree.Node tip = blockTree.getTip();
+    	if (tip == null) return;
+    	UtxoSet snapshot = utxoSet.copy();
+    	List<String> funded = new ArrayList<>(chain.getFunded());
+    	snapshotPending = true;
+    	
+    	Runnable write = () -> {
+    		try {
+    			utxoStore.save(tip.getHash(), snapshot, funded);
+    			snapshotHeight = tip.getHeight();
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		} finally {
+    			snapshotPending = false;
+    		}
+    	};
+    	
+    	if (background) {
+    		storageExecutor.execute(write);
+    	} else {
+    		write.run();
+    	}
+    }
+    
+    // Starting from the saved UTXO set instead of replaying the blocks up to its tip: the chain index
+    // gets their headers and the wallet is rebuilt from the outputs paying this node.
+    // Returns false if there is no usable snapshot.
+    private boolean restoreUtxoSnapshot() {
+    	String tipHash;
+    	List<String> funded = new ArrayList<>();
+    	try {
+    		tipHash = utxoStore.load(utxoSet, funded);
+    	} catch (IOException e) {
+    		gui.log("Could not read the UTXO snapshot: " + e.getMessage());
+    		tipHash = null;
+    	}
+    	BlockTree.Node snapshotTip = tipHash == null ? null : blockTree.get(tipHash);
+    	if (snapshotTip == null) {
+    		utxoSet.clear();
+    		return false;
+    	}
+    	
+    	for (BlockTree.Node n : BlockTree.pathFrom(null, snapshotTip)) {
+    		updateBlockchain(n.getHeader(), "ADD");
+    		adjustDifficulty(n.getHeader());
+    	}
+    	chain.addFunded(funded);
+    	blockTree.setTip(snapshotTip);
+    	snapshotHeight = snapshotTip.getHeight();
+    	prunedHeight = snapshotTip.getHeight();
+    	
+    	for (String txId : utxoSet.getTxIds()) {
+    		for (TransactionOutput.Output out : utxoSet.getOutputs(txId).values()) {
+    			if (out.getScriptPubKey().equals(myAddress)) {
+    				wallet.addOutput(txId, out);
+    				wallet.setValue(wallet.getValue() + out.getValue());
+    			}
+    		}
+    	}
+    	gui.updateInfoLine("Balance", wallet.getValue() + " BTC");
+    	gui.log("Restored " + utxoSet.size() + " unspent outputs from the snapshot at height " + snapshotHeight + ".");
+    	return true;
+    }
+    
+    // A block whose parent this node has never seen means the node is behind (it started late or
+    // missed blocks): the missing part of the chain is requested from the peer that sent it
+    private boolean isAheadOfTip(Block block, String from) {
+    	if (blockTree.size() == 0 && block.isGenesis()) return false;
+    	String parent = block.getHashPrevBlock();
+    	if (blockTree.contains(parent) || headerSync.contains(parent)) return false;
+    	
+    	metrics.increment("sync.unconnectedBlocks");
+    	if (!headerSync.isActive()) requestHeaders(from);
+    	return true;
+    }
+    
+    // === Light nodes ===
+    
+    // Merkle proofs of the transactions paying an address in the requested blocks. Blocks this node
+    // does not have, or has pruned, are left out of the searched list so the light node asks elsewhere.
+    private void handleGetProofs(MerkleProof.Request req, String from) {
+    	List<String> searched = new ArrayList<>();
+    	List<MerkleProof> proofs = new ArrayList<>();
+    	for (String hash : req.getBlockHashes()) {
+    		if (searched.size() >= HeaderSync.MAX_HEADERS) break;
+    		BlockTree.Node node = blockTree.get(hash);
+    		Block block = node == null ? null : blockTree.getBlock(node);
+    		if (block == null) continue;
+    		searched.add(hash);
+    		
+    		List<Transaction> txs = block.getTransactions();
+    		for (int i = 0; i < txs.size(); i++) {
+    			for (TransactionOutput.Output out : txs.get(i).getTxOutput().getOutputList()) {
+    				if (out.getScriptPubKey().equals(req.getAddress())) {
+    					proofs.add(MerkleProof.fromBlock(block, i));
+    					break;
+    				}
+    			}
+    		}
+    	}
+    	metrics.increment("light.proofRequests");
+    	metrics.add("light.proofs", proofs.size());
+    	sendPayload(WireCodec.encodeProofs(new MerkleProof.Response(searched, proofs)), "PROOFS", 
+    			Collections.singletonList(from));
+    }
+    
+    // === Headers-first chain sync (GETHEADERS / HEADERS, then GETDATA of the bodies) ===
+    
+    // Hashes of the local chain, newest first: the last 10 blocks, then exponentially sparser down to
+    // the first block, so the peer finds the fork point in a few lookups whatever the chain length
+    private List<String> buildLocator() {
+    	List<String> locator = new ArrayList<>();
+    	if (headerSync.isActive()) locator.add(headerSync.getLastHeaderHash());
+    	
+    	int step = 1;
+    	int last = 0;
+    	for (int i = chain.size() - 1; i >= 0; i -= step) {
+    		locator.add(chain.getHash(i));
+    		last = i;
+    		if (locator.size() >= 10) step *= 2;
+    	}
+    	if (!chain.isEmpty() && last != 0) locator.add(chain.getHash(0));
+    	return locator;
+    }
+    
+    private void requestHeaders(String peer) {
+    	sendPayload(WireCodec.encodeGetHeaders(buildLocator()), "GETHEADERS", Collections.singletonList(peer));
+    }
+    
+    // Sending the headers following the most recent locator hash found in the local chain
+    // (from the first block if none is known)
+    private void handleGetHeaders(List<String> locator, String from) {
+    	int start = 0;
+    	for (String hash : locator) {
+    		int height = chain.heightOf(hash);
+    		if (height >= 0) {
+    			start = height + 1;
+    			break;
+    		}
+    	}
+    	
+    	int end = Math.min(chain.size(), start + HeaderSync.MAX_HEADERS);
+    	List<Block> headers = chain.getHeaders(start, end);
+    	sendPayload(WireCodec.encodeHeaders(headers), "HEADERS", Collections.singletonList(from));
+    }
+    
+    private void receiveHeaders(List<Block> headers, String from) {
+    	if (headers.isEmpty()) return;
+    	
+    	// The headers may branch off below the tip (a competing chain)
+    	String tip = headers.get(0).getHashPrevBlock();
+    	if (!blockTree.contains(tip)) {
+    		tip = chain.getTipHash();
+    	}
+    	int added = headerSync.addHeaders(headers, tip);
+    	if (added < 0) {
+    		metrics.increment("sync.invalidHeaders");
+    		gui.log("Rejected headers from " + from + " (broken chain or invalid proof of work)");
+    		return;
+    	}
+    	
+    	metrics.add("sync.headers", added);
+    	if (added > 0) gui.log("Syncing: " + headerSync.getRemaining() + " blocks to download.");
+    	
+    	// A full batch means the peer has more
+    	if (headers.size() >= HeaderSync.MAX_HEADERS) requestHeaders(from);
+    	continueSync();
+    }
+    
+    // Requesting block bodies from every neighbour in parallel, and connecting the ones that arrived
+    private void continueSync() {
+    	if (!headerSync.isActive()) return;
+    	
+    	long now = System.currentTimeMillis();
+    	for (String peer : peers()) {
+    		List<Inventory.Item> items = new ArrayList<>();
+    		for (String hash : headerSync.nextRequests(peer, now)) {
+    			items.add(new Inventory.Item(Inventory.BLOCK, hash));
+    		}
+    		if (!items.isEmpty()) {
+    			sendPayload(WireCodec.encodeInventory(items), "GETDATA", Collections.singletonList(peer));
+    		}
+    	}
+    	
+    	Block block;
+    	while ((block = headerSync.nextConnectable()) != null) {
+    		if (blockTree.contains(block.getHashHeaderBlock())) continue; // relayed to us meanwhile
+    		if (!receiveBlock(block, "sync", false)) {
+    			gui.log("Sync stopped: block " + block.getId() + " could not be connected.");
+    			headerSync.abort();
+    			return;
+    		}
+    		metrics.increment("sync.blocks");
+    	}
+    	
+    	metrics.set("sync.remaining", headerSync.getRemaining());
+    	metrics.set("sync.inFlight", headerSync.getInFlight());
+    	metrics.set("sync.blocksPerSec", Math.round(headerSync.getBlocksPerSecond()));
+    	if (!headerSync.isActive()) {
+    		gui.log(String.format("Sync finished: %d blocks at %.1f blocks/s.", 
+    				headerSync.getConnected(), headerSync.getBlocksPerSecond()));
+    		readmitReloaded(true);
+    	}
+    }
+    
+    // === Compact block relay (CMPCTBLOCK / GETBLOCKTXN / BLOCKTXN) ===
+    
+    // Pushing a new block as a compact block to every peer that does not have it yet. A block of our
+    // own (from == null) is stamped with the time it is sent, relays pass the stamp on.
+    private void relayCompactBlock(Block block, String from) {
+    	if (from == null) blockSentAt.put(block.getHashHeaderBlock(), System.currentTimeMillis());
+    	Inventory.Item item = new Inventory.Item(Inventory.BLOCK, block.getHashHeaderBlock());
+    	List<String> targets = new ArrayList<>();
+    	for (String peer : peers()) {
+    		if (peer.equals(from) || inventory.knows(peer, item)) continue;
+    		inventory.markKnown(peer, item);
+    		targets.add(peer);
+    	}
+    	sendPayload(WireCodec.encodeCompactBlock(CompactBlock.fromBlock(block)), "CMPCTBLOCK", targets, 
+    			block.getHashHeaderBlock(), blockSentAt.get(block.getHashHeaderBlock()));
+    	flushAnnouncements();
+    }
+    
+    // Rebuilding a relayed block from the MemPool, and asking the sender only for what is missing
+    private void receiveCompactBlock(CompactBlock cb, String from) {
+    	String hash = cb.getHeader().getHashHeaderBlock();
+    	Inventory.Item item = new Inventory.Item(Inventory.BLOCK, hash);
+    	inventory.markKnown(from, item);
+    	if (blockTree.contains(hash) || isAheadOfTip(cb.getHeader(), from)) return;
+    	
+    	List<Integer> missing = cb.reconstruct(mempool);
+    	if (missing.isEmpty()) {
+    		metrics.increment("compact.reconstructed");
+    		completeCompactBlock(cb, from);
+    		return;
+    	}
+    	
+    	// Only one peer at a time is asked to complete a block, until its request times out. This
+    	// sender is remembered in case that request fails (see retryCompactBlocks).
+    	if (!inventory.startRequest(item, System.currentTimeMillis())) {
+    		compactFallbacks.putIfAbsent(hash, from);
+    		return;
+    	}
+    	metrics.add("compact.missingTxs", missing.size());
+    	pendingCompactBlocks.put(hash, cb);
+    	CompactBlock.BlockTxns request = new CompactBlock.BlockTxns(hash, missing, new ArrayList<>());
+    	sendPayload(WireCodec.encodeBlockTxns(request), "GETBLOCKTXN", Collections.singletonList(from));
+    }
+    
+    // A peer is rebuilding one of our blocks: send it the transactions at the requested indexes
+    private void handleGetBlockTxn(CompactBlock.BlockTxns request, String from) {
+    	BlockTree.Node node = blockTree.get(request.getBlockHash());
+    	Block block = node == null ? null : blockTree.getBlock(node);
+    	if (block == null) return;
+    	
+    	List<Integer> indexes = new ArrayList<>();
+    	List<Transaction> txs = new ArrayList<>();
+    	for (int index : request.getIndexes()) {
+    		if (index < 0 || index >= block.getTransactions().size()) continue;
+    		indexes.add(index);
+    		txs.add(block.getTransactions().get(index));
+    	}
+    	CompactBlock.BlockTxns answer = new CompactBlock.BlockTxns(request.getBlockHash(), indexes, txs);
+    	sendPayload(WireCodec.encodeBlockTxns(answer), "BLOCKTXN", Collections.singletonList(from));
+    }
+    
+    private void receiveBlockTxn(CompactBlock.BlockTxns answer, String from) {
+    	CompactBlock cb = pendingCompactBlocks.remove(answer.getBlockHash());
+    	if (cb == null) return;
+    	inventory.received(new Inventory.Item(Inventory.BLOCK, answer.getBlockHash()));
+    	
+    	if (!cb.fill(answer.getIndexes(), answer.getTxs()) || !cb.isComplete()) {
+    		requestFullBlock(answer.getBlockHash(), from);
+    		return;
+    	}
+    	completeCompactBlock(cb, from);
+    }
+    
+    // A reconstructed block whose transactions do not match its Merkle root (e.g. a short id collision)
+    // is downloaded in full instead
+    private void completeCompactBlock(CompactBlock cb, String from) {
+    	Block block = cb.toBlock();
+    	if (!block.calculateMerkleRoot().equals(block.getMerkleRoot())) {
+    		requestFullBlock(block.getHashHeaderBlock(), from);
+    		return;
+    	}
+    	receiveBlock(block, from, true);
+    }
+    
+    // Compact blocks that came while another peer was asked to complete them: once that request is
+    // over without the block, it is downloaded in full from the peer remembered
+    private void retryCompactBlocks() {
+    	long now = System.currentTimeMillis();
+    	Iterator<Map.Entry<String, String>> it = compactFallbacks.entrySet().iterator();
+    	while (it.hasNext()) {
+    		Map.Entry<String, String> e = it.next();
+    		if (blockTree.contains(e.getKey()) || blockTree.isInvalid(e.getKey())) {
+    			it.remove();
+    		} else if (!inventory.isRequested(new Inventory.Item(Inventory.BLOCK, e.getKey()), now)) {
+    			it.remove();
+    			requestFullBlock(e.getKey(), e.getValue());
+    		}
+    	}
+    }
+    
+    private void requestFullBlock(String hash, String from) {
+    	metrics.increment("compact.fallback");
+    	Inventory.Item item = new Inventory.Item(Inventory.BLOCK, hash);
+    	inventory.received(item);
+    	if (inventory.startRequest(item, System.currentTimeMillis())) {
+    		sendPayload(WireCodec.encodeInventory(Collections.singletonList(item)), "GETDATA", 
+    				Collections.singletonList(from));
+    	}
     }
 
-    // Updating the MemPool Display
-    public void updateMempool(Transaction tx, String op) {
+    // === Transaction batching ===
+    
+    // Sending the batches whose window has passed
+    private void flushTransactionBatches() {
+    	for (String peer : txBatcher.duePeers(System.currentTimeMillis())) {
+    		sendTransactionBatch(peer);
+    	}
+    }
+    
+    private void sendTransactionBatch(String peer) {
+    	List<Transaction> batch = txBatcher.drain(peer, System.currentTimeMillis());
+    	if (batch.isEmpty()) return;
+    	List<String> ids = new ArrayList<>();
+    	for (Transaction tx : batch) ids.add(tx.getId());
+    	sendPayload(WireCodec.encodeTransactions(batch), "TRANSACTIONS", Collections.singletonList(peer), 
+    			String.join(",", ids));
+    	metrics.add("tx.batched.out", batch.size());
+    }
+    
+    // Admitting transactions received from a peer (signatures already checked by the pipeline workers)
+    // in the order they were sent, parents before children, then any orphan that was waiting for them
+    private void receiveTransactions(List<Transaction> txs, List<Boolean> valid, String from) {
+    	if (txs.size() > 1) metrics.add("tx.batched.in", txs.size());
+    	
+    	for (int i = 0; i < txs.size(); i++) {
+    		Transaction tx = txs.get(i);
+    		Inventory.Item item = new Inventory.Item(Inventory.TX, tx.getId());
+    		inventory.received(item);
+    		inventory.markKnown(from, item);
+    		seenFilter.add(tx.getId());
+    		if (haveObject(item)) continue;
+    		
+    		if (!valid.get(i)) {
+    			gui.log("Rejected invalid transaction " + tx.getId() + " from " + from);
+    		} else if (admitTransaction(tx, from, true)) {
+    			resolveOrphans(tx);
+    		}
+    	}
+    }
+    
+    // Verifying a transaction and adding it to the MemPool, or to the orphan pool if it spends
+    // outputs this node has not seen yet. Returns true if the transaction entered the MemPool.
+    private boolean admitTransaction(Transaction tx, String from, boolean signaturesChecked) {
+    	if (mempool.contains(tx.getId()) || orphanPool.contains(tx.getId())) return false;
+    	
+    	if (tx.getTxInput().getInputList().isEmpty()) {
+    		String reason = checkSystemGrant(tx);
+    		if (reason != null) {
+    			gui.log("Rejected transaction " + tx.getId() + " from " + from + " (" + reason + ")");
+    			return false;
+    		}
+    	}
+    	
+    	if (!signaturesChecked && !verifyTransactionInputs(tx)) {
+    		gui.log("Rejected invalid transaction " + tx.getId() + " from " + from);
+    		return false;
+    	}
     	
+    	List<String> missing = mempool.findMissingInputs(tx, utxoSet);
+    	if (!missing.isEmpty()) {
+    		List<OrphanPool.Orphan> evicted = orphanPool.add(tx, from, missing);
+    		metrics.add("orphans.evicted", evicted.size());
+    		gui.log("Transaction " + tx.getId() + " from " + from + " is an orphan, waiting for " + missing);
+    		return false;
+    	}
+    	
+    	// Same rule as in blocks, so this node never mines a block it would reject itself
+    	if (!isSignedByOwners(tx)) {
+    		gui.log("Rejected transaction " + tx.getId() + " from " + from + " (not signed by the owner of its inputs)");
+    		return false;
+    	}
+    	
+    	if (!addToMempool(tx)) {
+    		gui.log("Rejected transaction " + tx.getId() + " from " + from 
+    				+ " (" + mempool.getRejectReason() + ")");
+    		return false;
+    	}
+    	gui.log("Received valid transaction " + tx.getId() + " from " + from);
+    	if (neighbours.contains(from)) {
+    		metrics.set("tx.lastPropagationMs", System.currentTimeMillis() - tx.getTimestamp());
+    	}
+    	announce(Inventory.TX, tx.getId(), from);
+    	return true;
+    }
+    
+    // A SYSTEM grant is paid once per address: refused if malformed, if the address was funded on the
+    // chain or if a grant to it already waits in the MemPool. Null if it can be admitted.
+    private String checkSystemGrant(Transaction tx) {
+    	String address = BlockValidator.grantAddress(tx);
+    	if (address == null) return "not a SYSTEM grant of " + BlockValidator.SYSTEM_GRANT;
+    	if (chain.isFunded(address)) return "address already funded";
+    	for (Transaction pending : mempool.getTransactions()) {
+    		if (address.equals(BlockValidator.grantAddress(pending))) return "a grant to this address is pending";
+    	}
+    	return null;
+    }
+    
+    // Re-evaluating the orphans waiting for the outputs of a transaction, and in turn their own orphans
+    private void resolveOrphans(Transaction parent) {
+    	Deque<Transaction> parents = new ArrayDeque<>();
+    	parents.add(parent);
+    	while (!parents.isEmpty()) {
+    		for (OrphanPool.Orphan orphan : orphanPool.takeChildrenOf(parents.poll())) {
+    			if (admitTransaction(orphan.getTx(), orphan.getSender(), true)) {
+    				metrics.increment("orphans.resolved");
+    				parents.add(orphan.getTx());
+    			}
+    		}
+    	}
+    }
+    
+    private void resolveOrphans(Block block) {
+    	for (Transaction tx : block.getTransactions()) {
+    		resolveOrphans(tx);
+    	}
+    }
+    
+    // Updating the MemPool and its Display. Returns false if the mempool refused the transaction.
+    public boolean updateMempool(Transaction tx, String op) {
+    	
+    	boolean accepted = true;
     	if (op.equals("DELETE")) {
-    		mempool.removeIf(t -> t.getId().equals(tx.getId()));
+    		mempool.removeConfirmed(tx.getId());
     	} else if (op.equals("ADD")){
-    		mempool.add(tx);
+    		accepted = addToMempool(tx);
+    	}
+    	
+    	refreshMempoolDisplay();
+        return accepted;
+    }
+    
+    // Adding without refreshing the Display: a batch of transactions (a message, a reorg, the
+    // mempool reload) only marks it changed, and it is refreshed once the batch is applied
+    private boolean addToMempool(Transaction tx) {
+    	boolean accepted = mempool.add(tx, utxoSet) != null;
+    	if (accepted) {
+    		for (Mempool.Entry e : mempool.getReplaced()) {
+    			gui.log("Transaction " + e.getId() + " replaced by " + tx.getId());
+    		}
+    	}
+    	recordEvictions(mempool.getEvicted(), "size");
+    	mempoolChanged = true;
+    	return accepted;
+    }
+    
+    // Removing the transactions of a block from the MemPool, with any transaction double spending them
+    private void confirmBlockInMempool(Block block) {
+    	for (Mempool.Entry e : mempool.removeForBlock(block)) {
+    		gui.log("Dropped transaction " + e.getId() + " conflicting with block " + block.getId());
+    	}
+    	mempoolChanged = true;
+    }
+    
+    private void recordEvictions(List<Mempool.Entry> evicted, String reason) {
+    	if (evicted.isEmpty()) return;
+    	
+    	long bytes = 0;
+    	for (Mempool.Entry e : evicted) bytes += e.getSize();
+    	metrics.add("mempool.evicted." + reason, evicted.size());
+    	metrics.add("mempool.evictedBytes." + reason, bytes);
+    	gui.log("Evicted " + evicted.size() + " transactions from the mempool (" + reason + ").");
+    }
+    
+    // Periodic housekeeping: expire old mempool entries and report metrics
+    private void runMaintenance() {
+    	List<Mempool.Entry> expired = mempool.expire(
+    			System.currentTimeMillis() - config.getMempoolExpiryMillis());
+    	recordEvictions(expired, "expired");
+    	if (!expired.isEmpty()) refreshMempoolDisplay();
+    	
+    	metrics.add("orphans.expired", orphanPool.expire(
+    			System.currentTimeMillis() - config.getOrphanExpiryMillis()).size());
+    	metrics.set("orphans.count", orphanPool.size());
+    	
+    	// Asking a random neighbour for newer headers, in case a block announcement was missed
+    	if (!headerSync.isActive() && !neighbours.isEmpty()) {
+    		requestHeaders(neighbours.get(new Random().nextInt(neighbours.size())));
     	}
-    	mempool.sort((a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp())); // Sorting the mempool
     	
+    	// Compact blocks whose missing transactions never came (the request timed out)
+    	long now = System.currentTimeMillis();
+    	pendingCompactBlocks.keySet().removeIf(hash -> 
+    			!inventory.isRequested(new Inventory.Item(Inventory.BLOCK, hash), now));
+    	
+    	metrics.set("tx.batch.queued", txBatcher.queuedCount());
+    	metrics.set("seen.size", seenFilter.size());
+    	metrics.set("inbound.queued", inbound.getQueuedCount());
+    	metrics.set("inbound.queuedBytes", inbound.getQueuedBytes());
+    	metrics.set("inbound.dropped", inbound.getDropped());
+    	metrics.set("inbound.deferred", inbound.getDeferred());
+    	metrics.set("pipeline.jadeQueue", getCurQueueSize());
+    	metrics.set("pipeline.decodeQueue", pipeline.getDecodeQueueDepth());
+    	metrics.set("pipeline.decodeQueueMax", pipeline.getMaxDecodeQueueDepth());
+    	metrics.set("pipeline.decoding", pipeline.getDecoding());
+    	metrics.set("pipeline.applyQueue", pipeline.getApplyQueueDepth());
+    	metrics.set("mempool.count", mempool.size());
+    	metrics.set("mempool.bytes", mempool.getTotalBytes());
+    	if (config.isLogMetrics()) gui.log("Metrics: " + metrics.snapshot());
+    }
+    
+    private void refreshMempoolDisplayIfChanged() {
+    	if (mempoolChanged) refreshMempoolDisplay();
+    }
+    
+    private void refreshMempoolDisplay() {
+    	mempoolChanged = false;
         if (mempool.isEmpty()) {
             gui.updateInfoLine("MemPool", "Empty");
             return;
@@ -590,7 +1854,7 @@ public class NodeAgent extends Agent {
 
         // Extract only transaction IDs
         List<String> ids = new ArrayList<>();
-        for (Transaction t : mempool) {
+        for (Transaction t : mempool.getTransactions()) {
             ids.add(t.getId());
         }
 
@@ -601,72 +1865,56 @@ public class NodeAgent extends Agent {
     // Updating the Blockchain display
     public void updateBlockchain(Block block, String op) {
     	
+    	// Blocks are only ever connected and disconnected at the tip
     	if (op.equals("DELETE")) {
-    		blockchain.removeIf(b -> b.getId().equals(block.getId()));
+    		if (block.getHashHeaderBlock().equals(chain.getTipHash())) chain.disconnectTip(block);
     	} else if (op.equals("ADD")){
-    		blockchain.add(block);
+    		chain.connect(block);
     	}
     	
-        if (blockchain.isEmpty()) {
+        if (chain.isEmpty()) {
             gui.updateInfoLine("Blockchain", "Empty");
             return;
         }
 
-        // Extract only block IDs
+        // Extract only block IDs, of the most recent blocks on long chains
         List<String> ids = new ArrayList<>();
-        for (Block b : blockchain) {
-            ids.add(b.getId());
+        int from = Math.max(0, chain.size() - DISPLAYED_BLOCKS);
+        if (from > 0) ids.add("... (" + from + " more)");
+        for (int h = from; h < chain.size(); h++) {
+            ids.add(chain.getHeader(h).getId());
         }
 
         String joined = String.join(" || ", ids);
         gui.updateInfoLine("Blockchain", " " + joined);
     }
     
-    // A helper function to find an output's index given a transaction ID and a ScriptPubKey address
-    private int findOutputIndex(String txId, String address, List<Transaction> txList) {
-
-        for (Transaction t : txList) {
-            if (t.getId().equals(txId)) {
-
-                List<TransactionOutput.Output> outs = t.getTxOutput().getOutputList();
-
-                for (int i = 0; i < outs.size(); i++) {
-                    if (outs.get(i).getScriptPubKey().equals(address)) {
-                        return i;
-                    }
-                }
-            }
-        }
-
-        return -1; // not found
+    // A helper function to find the index of an unspent output given a transaction ID and a ScriptPubKey
+    // address. The UTXO set is used, the transaction's block may have been pruned.
+    private int findOutputIndex(String txId, String address) {
+    	for (Map.Entry<Integer, TransactionOutput.Output> e : utxoSet.getOutputs(txId).entrySet()) {
+    		if (e.getValue().getScriptPubKey().equals(address)) {
+    			return e.getKey();
+    		}
+    	}
+    	return -1; // not found
     }
 
+    // Signature part of the input checks, also run by the pipeline workers (no node state)
     private boolean verifyTransactionInputs(Transaction tx) {
-        try {
-            String baseHeader = tx.getId()
-                    + "|" + tx.getVersion()
-                    + "|" + tx.getSenderHash()
-                    + "|" + tx.getTimestamp();
-
-            for (TransactionInput.Input in : tx.getTxInput().getInputList()) {
-
-                String perInput = baseHeader + "|IN" + in.getPrevTxId() + in.getIndex();
-                String digest = CryptoUtils.hashData(perInput);
-
-                for (Map.Entry<PublicKey, String> e : in.getScriptSig().entrySet()) {
-                    PublicKey pub = e.getKey();
-                    String sig = e.getValue();
-
-                    boolean ok = CryptoUtils.verifySignature(digest, sig, pub);
-                    if (!ok) return false;
-                }
-            }
-            return true;
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        }
+        return BlockValidator.verifySignatures(tx);
+    }
+    
+    // Ownership part of the input checks: needs the outputs spent, from the UTXO set or the MemPool.
+    // False if one of them is unknown.
+    private boolean isSignedByOwners(Transaction tx) {
+    	List<TransactionOutput.Output> spent = new ArrayList<>();
+    	for (TransactionInput.Input in : tx.getTxInput().getInputList()) {
+    		TransactionOutput.Output out = mempool.findOutput(in.getPrevTxId(), in.getIndex(), utxoSet);
+    		if (out == null) return false;
+    		spent.add(out);
+    	}
+    	return BlockValidator.isSignedByOwners(tx, spent);
     }
     
     // Display Block Details Function
@@ -754,9 +2002,13 @@ public class NodeAgent extends Agent {
         return sb;
     }
     
-    // A method for applying all block transactions when a block is mined.
-    private void applyBlockTransactions(Block block) {
+    // A method for applying all block transactions when a block is connected.
+    // Returns the outputs spent by the block, to undo it on a reorg.
+    private List<UtxoSet.SpentOutput> applyBlockTransactions(Block block) {
+    	List<UtxoSet.SpentOutput> undo = new ArrayList<>();
     	for (Transaction tx : block.getTransactions()) {
+    		utxoSet.applyTransaction(tx, undo);
+    		
     		// If the node was the sender, remove spent outputs
     	    if (tx.getSenderHash().equals(myAddress)) {
     	        for (TransactionInput.Input in : tx.getTxInput().getInputList()) {
@@ -775,22 +2027,33 @@ public class NodeAgent extends Agent {
     	    
     	    gui.updateInfoLine("Balance", wallet.getValue() + " BTC");
         }
+    	return undo;
     }
     
     // A method for verifying if a block is valid or not
     private boolean verifyBlock(Block block) {
     	
+    	// The claimed target decides the block's weight in the fork choice, so it must be met
     	if(!block.calculateMerkleRoot().equals(block.getMerkleRoot()) ||
-           !block.calculateBlockHash().equals(block.getHashHeaderBlock())) {
+           !HeaderSync.checkProofOfWork(block)) {
     		return false;
     	}
     	
-    	if (!blockchain.isEmpty()) {
-            String lastHash = blockchain.get(blockchain.size() - 1).getHashHeaderBlock();
-            if (!block.getHashPrevBlock().equals(lastHash)) {
-                return false;
-            }
-        }
+    	// Block capacity limits
+    	if (block.estimateSize() > config.getBlockMaxSize() || 
+    		block.countSigOps() > config.getBlockMaxSigOps()) {
+    		return false;
+    	}
+    	
+    	// No outpoint may be spent twice inside the block
+    	Set<String> spent = new HashSet<>();
+    	for (Transaction tx : block.getTransactions()) {
+    		for (TransactionInput.Input in : tx.getTxInput().getInputList()) {
+    			if (!spent.add(UtxoSet.key(in.getPrevTxId(), in.getIndex()))) {
+    				return false;
+    			}
+    		}
+    	}
     	
     	return true;
     	
@@ -828,24 +2091,194 @@ public class NodeAgent extends Agent {
     
     // A method for adjusting difficulty
     private void adjustDifficulty(Block block) {
-        long time = block.getMiningTime();
+        TARGET_VALUE = nextTarget(block);
 
-        if (time > 180000) { // more than 3 minutes
-            TARGET_VALUE = Math.max(1, TARGET_VALUE - 1);
+        if (block.getMiningTime() > 180000) {
             gui.log("Difficulty DECREASED → new TARGET = " + TARGET_VALUE);
         } else {
-            TARGET_VALUE += 1;
             gui.log("Difficulty INCREASED → new TARGET = " + TARGET_VALUE);
         }
-        
-        if(blockchain.size() % 5 == 0) {
-        	MINING_REWARD -= 0.1;
+    }
+    
+    // Target of the block after this one, from its header only: nodes on the same chain agree on it,
+    // and a disconnected block is undone by recomputing it from the new tip
+    private static int nextTarget(Block header) {
+        if (header.getMiningTime() > 180000) { // more than 3 minutes
+            return Math.max(1, header.getTarget() - 1);
         }
+        return header.getTarget() + 1;
+    }
+    
+    // Block subsidy at a given height. It only depends on the height, so every node expects the same
+    // coinbase for a block whichever branch it was on before.
+    private static double blockReward(int height) {
+    	return Math.max(0, MINING_REWARD - 0.1 * (height / 5));
+    }
+
+    // Rebuilding the block tree from the block store index, then connecting the best chain from the
+    // stored bodies. Only the headers are read up front.
+    private void loadBlockStore() {
+    	List<BlockStore.Entry> entries;
+    	try {
+    		entries = blockStore.open();
+    	} catch (IOException e) {
+    		gui.log("Could not open the block store (" + e.getMessage() + "), moving it aside and starting a new one.");
+    		try {
+    			entries = blockStore.openFresh();
+    		} catch (IOException e2) {
+    			gui.log("Could not create a new block store, blocks are kept in memory only: " + e2.getMessage());
+    			return;
+    		}
+    	}
+    	if (entries.isEmpty()) return;
+    	
+    	long start = System.currentTimeMillis();
+    	boolean pruned = false;
+    	for (BlockStore.Entry e : entries) {
+    		blockTree.addStored(e.getHeader(), e.isPruned() ? null : e.getLocation(), e.getUndoLocation());
+    		pruned |= e.isPruned();
+    	}
+    	
+    	// A pruned store can only be resumed from its UTXO snapshot
+    	if ((pruned || config.getPruneKeepBlocks() > 0) && !restoreUtxoSnapshot() && pruned) {
+    		gui.log("The block store is pruned but has no usable UTXO snapshot, starting with an empty chain.");
+    		blockTree = new BlockTree(blockStore);
+    		return;
+    	}
+    	activateBestChain();
+    	
+    	long elapsed = System.currentTimeMillis() - start;
+    	metrics.set("store.loadMs", elapsed);
+    	gui.log("Loaded " + chain.size() + " blocks (" + blockTree.size() + " stored) from disk in " + elapsed + " ms.");
+    	Block tip = blockTree.getTip() == null ? null : blockTree.getBlock(blockTree.getTip());
+    	if (tip != null) gui.showCurrentBlock(displayBlockDetails(tip).toString());
+    }
+
+    // Saving the MemPool and pending transactions. The snapshot is taken on the agent thread,
+    // the write itself can be left to the storage thread.
+    private void dumpMempool(boolean background) {
+    	List<Transaction> mempoolTxs = mempool.getTransactionsParentsFirst();
+    	List<Transaction> pending = new ArrayList<>(pendingTransactions);
+    	
+    	Runnable write = () -> {
+    		try {
+    			mempoolStore.save(mempoolTxs, pending);
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		}
+    	};
+    	
+    	if (background) {
+    		storageExecutor.execute(write);
+    	} else {
+    		write.run();
+    	}
+    }
+    
+    // Reloading the MemPool saved by a previous run. Transactions are read and re-verified in batches,
+    // one batch per behaviour step, so incoming messages keep being served during the reload.
+    private void startMempoolReload() {
+    	MempoolStore.Reader reader;
+    	try {
+    		reader = mempoolStore.open();
+    	} catch (IOException e) {
+    		gui.log("Could not read saved mempool: " + e.getMessage());
+    		return;
+    	}
+    	if (reader == null) return;
+    	
+    	pendingTransactions.addAll(reader.getPending());
+    	gui.log("Reloading " + reader.getRemaining() + " saved mempool transactions and " 
+    			+ reader.getPending().size() + " pending transactions.");
+    	reloadNextBatch(reader, 0);
+    }
+    
+    // Signatures are the expensive part: a batch is checked on the validation workers, and only the
+    // admission of the checked batch runs on the agent thread, between incoming messages
+    private void reloadNextBatch(MempoolStore.Reader reader, int reloaded) {
+    	List<Transaction> batch;
+    	try {
+    		batch = reader.nextBatch(config.getMempoolReloadBatchSize());
+    	} catch (IOException e) {
+    		gui.log("Saved mempool is corrupted: " + e.getMessage());
+    		batch = new ArrayList<>();
+    	}
+    	if (batch.isEmpty()) {
+    		finishMempoolReload(reader, reloaded);
+    		return;
+    	}
+    	
+    	List<Transaction> checked = batch;
+    	blockValidator.verifySignatures(checked, valid -> runOnAgentThread(() -> {
+    		int admitted = reloaded;
+    		for (int i = 0; i < checked.size(); i++) {
+    			if (!valid.get(i)) continue;
+    			// Spending outputs of blocks still to be synced: kept aside rather than
+    			// filling up the OrphanPool
+    			if (!mempool.findMissingInputs(checked.get(i), utxoSet).isEmpty()) {
+    				reloadWaiting.add(checked.get(i));
+    			} else if (admitTransaction(checked.get(i), "saved mempool", true)) {
+    				resolveOrphans(checked.get(i));
+    				admitted++;
+    			}
+    		}
+    		reloadNextBatch(reader, admitted);
+    	}));
+    }
+    
+    private void finishMempoolReload(MempoolStore.Reader reader, int reloaded) {
+    	try {
+    		reader.close();
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    	}
+    	gui.log("Mempool reload finished: " + reloaded + " transactions restored, " 
+    			+ reloadWaiting.size() + " waiting for their inputs.");
+    	readmitReloaded(false);
+    }
+
+    // Saved MemPool transactions whose inputs were unknown at reload, retried after each connected block
+    // (after the whole sync while syncing). After a sync the ones still missing an input are dropped:
+    // they spent outputs of a chain that no longer exists.
+    private void readmitReloaded(boolean synced) {
+    	if (reloadWaiting.isEmpty()) return;
+    	List<Transaction> waiting = reloadWaiting;
+    	reloadWaiting = new ArrayList<>();
+    	int restored = 0;
+    	for (Transaction tx : waiting) {
+    		if (!mempool.findMissingInputs(tx, utxoSet).isEmpty()) {
+    			if (!synced) reloadWaiting.add(tx);
+    			continue;
+    		}
+    		if (admitTransaction(tx, "saved mempool", true)) {
+    			resolveOrphans(tx);
+    			restored++;
+    		}
+    	}
+    	if (restored > 0 || synced) {
+    		gui.log("Saved mempool: " + restored + " more transactions restored" 
+    				+ (synced ? ", " + (waiting.size() - restored) + " dropped." : "."));
+    	}
     }
 
     @Override
     protected void takeDown() {
         gui.log("Agent shutting down...");
+        // Background writes (block appends, undo data, snapshots) finish before the final dumps
+        // and before the store is closed
+        storageExecutor.shutdown();
+        try {
+        	if (!storageExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+        		gui.log("Background disk writes still running at shutdown.");
+        	}
+        } catch (InterruptedException e) {
+        	Thread.currentThread().interrupt();
+        }
+        dumpMempool(false);
+        if (config.getPruneKeepBlocks() > 0) saveUtxoSnapshot(false);
+        blockStore.close();
+        pipeline.shutdown();
+        blockValidator.shutdown();
         System.out.println("Agent " + getLocalName() + " terminated.");
     }
 }
@@ -0,0 +1,405 @@
+package blockchain;
+
+import java.io.Serializable;
+
+// Tunable node parameters. Defaults can be overridden with -Dblockchain.<name>=<value>
+// system properties; MainContainer passes the resulting object to every agent.
+public class NodeConfig implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private long mempoolMaxBytes = 5_000_000;
+	private long mempoolExpiryMillis = 60 * 60 * 1000; // 1 hour
+	private long maintenanceIntervalMillis = 30_000;
+	private String dataDir = "data"; // each node stores its files in dataDir/<node name>
+	private long mempoolDumpIntervalMillis = 5 * 60 * 1000;
+	private int mempoolReloadBatchSize = 100;
+	private int orphanMaxCount = 100;
+	private long orphanExpiryMillis = 20 * 60 * 1000; // 20 minutes
+	private int invBatchSize = 500; // inventory items per INV / GETDATA message
+	private long invIntervalMillis = 100; // how long announcements are batched before being sent
+	private long getDataTimeoutMillis = 5_000; // after this, a missing object is requested from another peer
+	private int blockMaxSize = 100_000; // bytes, header and coinbase included
+	private int blockMaxSigOps = 2_000;
+	private long templateBuildMillis = 200; // time budget for selecting block transactions
+	private int txBatchMaxCount = 200; // transactions per TRANSACTIONS message
+	private long txBatchWindowMillis = 50; // how long outgoing transactions are held to fill a batch
+	private String topology = "full"; // full, random, smallworld or explicit (see Topology)
+	private int topologyDegree = 4; // neighbours per node for random and smallworld
+	private double topologyRewireProbability = 0.1; // smallworld only
+	private long topologySeed = 42; // same on every node, so they all build the same overlay
+	private String topologyAdjacency = ""; // explicit only, e.g. node1:node2,node3;node2:node3
+	private int seenFilterSize = 50_000; // recently seen transaction ids / block hashes remembered to drop duplicates
+	private int syncBlocksPerPeer = 16; // block downloads in flight per peer during sync
+	// threads decoding and validating messages, per node: every node of the JVM has its own pool
+	private int pipelineWorkers = Math.min(2, Runtime.getRuntime().availableProcessors());
+	private int pipelineQueueSize = 1_000; // messages waiting for a worker before the agent stops taking more
+	private long inboundPeerMsgsPerSecond = 1_000; // rate limit per sender
+	private long inboundPeerBytesPerSecond = 5_000_000;
+	private long inboundPeerQueueBytes = 2_000_000; // queued but not yet processed, per sender
+	private long inboundTotalQueueBytes = 32_000_000; // all senders together
+	private String inboundOverflowPolicy = "drop-newest"; // or drop-oldest (see InboundQueues)
+	private String compression = "none"; // payload codec for large messages: none, deflate, deflate-fast or gzip (see Compression)
+	private int compressionThreshold = 4_096; // bytes; smaller payloads are never compressed
+	private int validationWorkers = Math.min(2, Runtime.getRuntime().availableProcessors()); // threads checking block signatures, per node
+	private long blockSegmentMaxBytes = 16 * 1024 * 1024; // size of each block file in dataDir/<node>/blocks
+	private int pruneKeepBlocks = 0; // pruning mode: keep only the last N block bodies (0 keeps everything)
+	private String assumeValid = ""; // comma-separated block hashes whose ancestors skip signature checks
+	private long lightPollMillis = 5000; // light nodes ask full nodes for new headers and payment proofs this often
+	private boolean logMetrics = false; // write the metrics to the node log at every maintenance run
+
+	public static NodeConfig fromSystemProperties() {
+		NodeConfig config = new NodeConfig();
+		config.mempoolMaxBytes = Long.getLong("blockchain.mempoolMaxBytes", config.mempoolMaxBytes);
+		config.mempoolExpiryMillis = Long.getLong("blockchain.mempoolExpiryMillis", config.mempoolExpiryMillis);
+		config.maintenanceIntervalMillis = Long.getLong("blockchain.maintenanceIntervalMillis", 
+				config.maintenanceIntervalMillis);
+		config.dataDir = System.getProperty("blockchain.dataDir", config.dataDir);
+		config.mempoolDumpIntervalMillis = Long.getLong("blockchain.mempoolDumpIntervalMillis", 
+				config.mempoolDumpIntervalMillis);
+		config.mempoolReloadBatchSize = Integer.getInteger("blockchain.mempoolReloadBatchSize", 
+				config.mempoolReloadBatchSize);
+		config.orphanMaxCount = Integer.getInteger("blockchain.orphanMaxCount", config.orphanMaxCount);
+		config.orphanExpiryMillis = Long.getLong("blockchain.orphanExpiryMillis", config.orphanExpiryMillis);
+		config.invBatchSize = Integer.getInteger("blockchain.invBatchSize", config.invBatchSize);
+		config.invIntervalMillis = Long.getLong("blockchain.invIntervalMillis", config.invIntervalMillis);
+		config.getDataTimeoutMillis = Long.getLong("blockchain.getDataTimeoutMillis", config.getDataTimeoutMillis);
+		config.blockMaxSize = Integer.getInteger("blockchain.blockMaxSize", config.blockMaxSize);
+		config.blockMaxSigOps = Integer.getInteger("blockchain.blockMaxSigOps", config.blockMaxSigOps);
+		config.templateBuildMillis = Long.getLong("blockchain.templateBuildMillis", config.templateBuildMillis);
+		config.txBatchMaxCount = Integer.getInteger("blockchain.txBatchMaxCount", config.txBatchMaxCount);
+		config.txBatchWindowMillis = Long.getLong("blockchain.txBatchWindowMillis", config.txBatchWindowMillis);
+		config.topology = System.getProperty("blockchain.topology", config.topology);
+		config.topologyDegree = Integer.getInteger("blockchain.topologyDegree", config.topologyDegree);
+		config.topologyRewireProbability = Double.parseDouble(System.getProperty(
+				"blockchain.topologyRewireProbability", String.valueOf(config.topologyRewireProbability)));
+		config.topologySeed = Long.getLong("blockchain.topologySeed", config.topologySeed);
+		config.topologyAdjacency = System.getProperty("blockchain.topologyAdjacency", config.topologyAdjacency);
+		config.seenFilterSize = Integer.getInteger("blockchain.seenFilterSize", config.seenFilterSize);
+		config.syncBlocksPerPeer = Integer.getInteger("blockchain.syncBlocksPerPeer", config.syncBlocksPerPeer);
+		config.pipelineWorkers = Integer.getInteger("blockchain.pipelineWorkers", config.pipelineWorkers);
+		config.pipelineQueueSize = Integer.getInteger("blockchain.pipelineQueueSize", config.pipelineQueueSize);
+		config.inboundPeerMsgsPerSecond = Long.getLong("blockchain.inboundPeerMsgsPerSecond", 
+				config.inboundPeerMsgsPerSecond);
+		config.inboundPeerBytesPerSecond = Long.getLong("blockchain.inboundPeerBytesPerSecond", 
+				config.inboundPeerBytesPerSecond);
+		config.inboundPeerQueueBytes = Long.getLong("blockchain.inboundPeerQueueBytes", config.inboundPeerQueueBytes);
+		config.inboundTotalQueueBytes = Long.getLong("blockchain.inboundTotalQueueBytes", config.inboundTotalQueueBytes);
+		config.inboundOverflowPolicy = System.getProperty("blockchain.inboundOverflowPolicy", config.inboundOverflowPolicy);
+		config.compression = System.getProperty("blockchain.compression", config.compression);
+		config.compressionThreshold = Integer.getInteger("blockchain.compressionThreshold", config.compressionThreshold);
+		config.validationWorkers = Integer.getInteger("blockchain.validationWorkers", config.validationWorkers);
+		config.blockSegmentMaxBytes = Long.getLong("blockchain.blockSegmentMaxBytes", config.blockSegmentMaxBytes);
+		config.pruneKeepBlocks = Integer.getInteger("blockchain.pruneKeepBlocks", config.pruneKeepBlocks);
+		config.assumeValid = System.getProperty("blockchain.assumeValid", config.assumeValid);
+		config.lightPollMillis = Long.getLong("blockchain.lightPollMillis", config.lightPollMillis);
+		config.logMetrics = Boolean.parseBoolean(System.getProperty("blockchain.logMetrics", 
+				Boolean.toString(config.logMetrics)));
+		return config;
+	}
+
+	public long getMempoolMaxBytes() {
+		return mempoolMaxBytes;
+	}
+
+	public void setMempoolMaxBytes(long mempoolMaxBytes) {
+		this.mempoolMaxBytes = mempoolMaxBytes;
+	}
+
+	public long getMempoolExpiryMillis() {
+		return mempoolExpiryMillis;
+	}
+
+	public void setMempoolExpiryMillis(long mempoolExpiryMillis) {
+		this.mempoolExpiryMillis = mempoolExpiryMillis;
+	}
+
+	public long getMaintenanceIntervalMillis() {
+		return maintenanceIntervalMillis;
+	}
+
+	public void setMaintenanceIntervalMillis(long maintenanceIntervalMillis) {
+		this.maintenanceIntervalMillis = maintenanceIntervalMillis;
+	}
+
+	public String getDataDir() {
+		return dataDir;
+	}
+
+	public void setDataDir(String dataDir) {
+		this.dataDir = dataDir;
+	}
+
+	public long getMempoolDumpIntervalMillis() {
+		return mempoolDumpIntervalMillis;
+	}
+
+	public void setMempoolDumpIntervalMillis(long mempoolDumpIntervalMillis) {
+		this.mempoolDumpIntervalMillis = mempoolDumpIntervalMillis;
+	}
+
+	public int getMempoolReloadBatchSize() {
+		return mempoolReloadBatchSize;
+	}
+
+	public void setMempoolReloadBatchSize(int mempoolReloadBatchSize) {
+		this.mempoolReloadBatchSize = mempoolReloadBatchSize;
+	}
+
+	public int getOrphanMaxCount() {
+		return orphanMaxCount;
+	}
+
+	public void setOrphanMaxCount(int orphanMaxCount) {
+		this.orphanMaxCount = orphanMaxCount;
+	}
+
+	public long getOrphanExpiryMillis() {
+		return orphanExpiryMillis;
+	}
+
+	public void setOrphanExpiryMillis(long orphanExpiryMillis) {
+		this.orphanExpiryMillis = orphanExpiryMillis;
+	}
+
+	public int getInvBatchSize() {
+		return invBatchSize;
+	}
+
+	public void setInvBatchSize(int invBatchSize) {
+		this.invBatchSize = invBatchSize;
+	}
+
+	public long getInvIntervalMillis() {
+		return invIntervalMillis;
+	}
+
+	public void setInvIntervalMillis(long invIntervalMillis) {
+		this.invIntervalMillis = invIntervalMillis;
+	}
+
+	public long getGetDataTimeoutMillis() {
+		return getDataTimeoutMillis;
+	}
+
+	public void setGetDataTimeoutMillis(long getDataTimeoutMillis) {
+		this.getDataTimeoutMillis = getDataTimeoutMillis;
+	}
+
+	public int getBlockMaxSize() {
+		return blockMaxSize;
+	}
+
+	public void setBlockMaxSize(int blockMaxSize) {
+		this.blockMaxSize = blockMaxSize;
+	}
+
+	public int getBlockMaxSigOps() {
+		return blockMaxSigOps;
+	}
+
+	public void setBlockMaxSigOps(int blockMaxSigOps) {
+		this.blockMaxSigOps = blockMaxSigOps;
+	}
+
+	public long getTemplateBuildMillis() {
+		return templateBuildMillis;
+	}
+
+	public void setTemplateBuildMillis(long templateBuildMillis) {
+		this.templateBuildMillis = templateBuildMillis;
+	}
+
+	public int getTxBatchMaxCount() {
+		return txBatchMaxCount;
+	}
+
+	public void setTxBatchMaxCount(int txBatchMaxCount) {
+		this.txBatchMaxCount = txBatchMaxCount;
+	}
+
+	public long getTxBatchWindowMillis() {
+		return txBatchWindowMillis;
+	}
+
+	public void setTxBatchWindowMillis(long txBatchWindowMillis) {
+		this.txBatchWindowMillis = txBatchWindowMillis;
+	}
+
+	public String getTopology() {
+		return topology;
+	}
+
+	public void setTopology(String topology) {
+		this.topology = topology;
+	}
+
+	public int getTopologyDegree() {
+		return topologyDegree;
+	}
+
+	public void setTopologyDegree(int topologyDegree) {
+		this.topologyDegree = topologyDegree;
+	}
+
+	public double getTopologyRewireProbability() {
+		return topologyRewireProbability;
+	}
+
+	public void setTopologyRewireProbability(double topologyRewireProbability) {
+		this.topologyRewireProbability = topologyRewireProbability;
+	}
+
+	public long getTopologySeed() {
+		return topologySeed;
+	}
+
+	public void setTopologySeed(long topologySeed) {
+		this.topologySeed = topologySeed;
+	}
+
+	public String getTopologyAdjacency() {
+		return topologyAdjacency;
+	}
+
+	public void setTopologyAdjacency(String topologyAdjacency) {
+		this.topologyAdjacency = topologyAdjacency;
+	}
+
+	public int getSeenFilterSize() {
+		return seenFilterSize;
+	}
+
+	public void setSeenFilterSize(int seenFilterSize) {
+		this.seenFilterSize = seenFilterSize;
+	}
+
+	public int getSyncBlocksPerPeer() {
+		return syncBlocksPerPeer;
+	}
+
+	public void setSyncBlocksPerPeer(int syncBlocksPerPeer) {
+		this.syncBlocksPerPeer = syncBlocksPerPeer;
+	}
+
+	public int getPipelineWorkers() {
+		return pipelineWorkers;
+	}
+
+	public void setPipelineWorkers(int pipelineWorkers) {
+		this.pipelineWorkers = pipelineWorkers;
+	}
+
+	public int getPipelineQueueSize() {
+		return pipelineQueueSize;
+	}
+
+	public void setPipelineQueueSize(int pipelineQueueSize) {
+		this.pipelineQueueSize = pipelineQueueSize;
+	}
+
+	public long getInboundPeerMsgsPerSecond() {
+		return inboundPeerMsgsPerSecond;
+	}
+
+	public void setInboundPeerMsgsPerSecond(long inboundPeerMsgsPerSecond) {
+		this.inboundPeerMsgsPerSecond = inboundPeerMsgsPerSecond;
+	}
+
+	public long getInboundPeerQueueBytes() {
+		return inboundPeerQueueBytes;
+	}
+
+	public void setInboundPeerQueueBytes(long inboundPeerQueueBytes) {
+		this.inboundPeerQueueBytes = inboundPeerQueueBytes;
+	}
+
+	public long getInboundTotalQueueBytes() {
+		return inboundTotalQueueBytes;
+	}
+
+	public void setInboundTotalQueueBytes(long inboundTotalQueueBytes) {
+		this.inboundTotalQueueBytes = inboundTotalQueueBytes;
+	}
+
+	public String getInboundOverflowPolicy() {
+		return inboundOverflowPolicy;
+	}
+
+	public void setInboundOverflowPolicy(String inboundOverflowPolicy) {
+		this.inboundOverflowPolicy = inboundOverflowPolicy;
+	}
+
+	public long getInboundPeerBytesPerSecond() {
+		return inboundPeerBytesPerSecond;
+	}
+
+	public void setInboundPeerBytesPerSecond(long inboundPeerBytesPerSecond) {
+		this.inboundPeerBytesPerSecond = inboundPeerBytesPerSecond;
+	}
+
+	public String getCompression() {
+		return compression;
+	}
+
+	public void setCompression(String compression) {
+		this.compression = compression;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public int getValidationWorkers() {
+		return validationWorkers;
+	}
+
+	public void setValidationWorkers(int validationWorkers) {
+		this.validationWorkers = validationWorkers;
+	}
+
+	public long getBlockSegmentMaxBytes() {
+		return blockSegmentMaxBytes;
+	}
+
+	public void setBlockSegmentMaxBytes(long blockSegmentMaxBytes) {
+		this.blockSegmentMaxBytes = blockSegmentMaxBytes;
+	}
+
+	public int getPruneKeepBlocks() {
+		return pruneKeepBlocks;
+	}
+
+	public void setPruneKeepBlocks(int pruneKeepBlocks) {
+		this.pruneKeepBlocks = pruneKeepBlocks;
+	}
+
+	public String getAssumeValid() {
+		return assumeValid;
+	}
+
+	public void setAssumeValid(String assumeValid) {
+		this.assumeValid = assumeValid;
+	}
+
+	public long getLightPollMillis() {
+		return lightPollMillis;
+	}
+
+	public void setLightPollMillis(long lightPollMillis) {
+		this.lightPollMillis = lightPollMillis;
+	}
+
+	public boolean isLogMetrics() {
+		return logMetrics;
+	}
+
+	public void setLogMetrics(boolean logMetrics) {
+		this.logMetrics = logMetrics;
+	}
+
+}
@@ -0,0 +1,40 @@
+package blockchain;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Named counters and gauges of a node, printed periodically so runs under load can be sized.
+public class NodeMetrics {
+
+	private Map<String, AtomicLong> values = new ConcurrentHashMap<>();
+
+	public void increment(String name) {
+		add(name, 1);
+	}
+
+	public void add(String name, long delta) {
+		values.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(delta);
+	}
+
+	public void set(String name, long value) {
+		values.computeIfAbsent(name, k -> new AtomicLong()).set(value);
+	}
+
+	public long get(String name) {
+		AtomicLong v = values.get(name);
+		return v == null ? 0 : v.get();
+	}
+
+	// One line, sorted by name: "a=1 b=2 ..."
+	public String snapshot() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, AtomicLong> e : new TreeMap<>(values).entrySet()) {
+			if (sb.length() > 0) sb.append(' ');
+			sb.append(e.getKey()).append('=').append(e.getValue().get());
+		}
+		return sb.toString();
+	}
+
+}
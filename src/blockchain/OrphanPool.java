@@ -0,0 +1,128 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+// Holds transactions that arrived before the transaction whose output they spend.
+// Orphans are indexed by the outpoints they are missing, so they can be looked up as soon as the
+// parent shows up (in the mempool or in a block). The pool is bounded: when it is full a random
+// orphan is evicted, so a peer cannot choose which entries get pushed out.
+public class OrphanPool {
+
+	// Orphans larger than this are not worth keeping around
+	public static final int MAX_ORPHAN_SIZE = 10_000;
+
+	public static class Orphan {
+		private final Transaction tx;
+		private final String sender;
+		private final long entryTime;
+		private final List<String> missing;
+
+		Orphan(Transaction tx, String sender, List<String> missing) {
+			this.tx = tx;
+			this.sender = sender;
+			this.entryTime = System.currentTimeMillis();
+			this.missing = missing;
+		}
+
+		public Transaction getTx() { return tx; }
+		public String getSender() { return sender; }
+		public long getEntryTime() { return entryTime; }
+		public List<String> getMissing() { return missing; }
+	}
+
+	private int maxOrphans;
+	private Random random = new Random();
+
+	private Map<String, Orphan> orphans = new HashMap<>();
+	private Map<String, Set<String>> byMissingOutpoint = new HashMap<>(); // prevTxId:index -> orphan ids
+
+	// Dense list of ids for O(1) random eviction (swap with last, then remove last)
+	private List<String> ids = new ArrayList<>();
+	private Map<String, Integer> positions = new HashMap<>();
+
+	public OrphanPool(int maxOrphans) {
+		this.maxOrphans = maxOrphans;
+	}
+
+	// Store an orphan waiting for the given outpoints. Returns the orphans evicted to make room.
+	public List<Orphan> add(Transaction tx, String sender, List<String> missing) {
+		List<Orphan> evicted = new ArrayList<>();
+		if (orphans.containsKey(tx.getId()) || tx.estimateSize() > MAX_ORPHAN_SIZE) return evicted;
+
+		while (orphans.size() >= maxOrphans && !ids.isEmpty()) {
+			evicted.add(remove(ids.get(random.nextInt(ids.size()))));
+		}
+
+		Orphan orphan = new Orphan(tx, sender, missing);
+		orphans.put(tx.getId(), orphan);
+		positions.put(tx.getId(), ids.size());
+		ids.add(tx.getId());
+		for (String outpoint : missing) {
+			byMissingOutpoint.computeIfAbsent(outpoint, k -> new HashSet<>()).add(tx.getId());
+		}
+		return evicted;
+	}
+
+	// Take out every orphan that was waiting for one of the outputs of the given transaction
+	public List<Orphan> takeChildrenOf(Transaction parent) {
+		List<Orphan> children = new ArrayList<>();
+		int outCount = parent.getTxOutput().getOutputList().size();
+		for (int i = 0; i < outCount; i++) {
+			Set<String> waiting = byMissingOutpoint.get(UtxoSet.key(parent.getId(), i));
+			if (waiting == null) continue;
+			for (String id : new ArrayList<>(waiting)) {
+				Orphan o = remove(id);
+				if (o != null) children.add(o);
+			}
+		}
+		return children;
+	}
+
+	public Orphan remove(String txId) {
+		Orphan orphan = orphans.remove(txId);
+		if (orphan == null) return null;
+
+		for (String outpoint : orphan.missing) {
+			Set<String> waiting = byMissingOutpoint.get(outpoint);
+			if (waiting != null) {
+				waiting.remove(txId);
+				if (waiting.isEmpty()) byMissingOutpoint.remove(outpoint);
+			}
+		}
+
+		int pos = positions.remove(txId);
+		String last = ids.remove(ids.size() - 1);
+		if (!last.equals(txId)) {
+			ids.set(pos, last);
+			positions.put(last, pos);
+		}
+		return orphan;
+	}
+
+	// Drop orphans that have been waiting since before the cutoff time
+	public List<Orphan> expire(long cutoffTime) {
+		List<Orphan> expired = new ArrayList<>();
+		Iterator<Orphan> it = new ArrayList<>(orphans.values()).iterator();
+		while (it.hasNext()) {
+			Orphan o = it.next();
+			if (o.getEntryTime() < cutoffTime) expired.add(remove(o.getTx().getId()));
+		}
+		return expired;
+	}
+
+	public boolean contains(String txId) {
+		return orphans.containsKey(txId);
+	}
+
+	public int size() {
+		return orphans.size();
+	}
+
+}
@@ -0,0 +1,54 @@
+package blockchain;
+
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.wrapper.AgentContainer;
+import jade.wrapper.AgentController;
+
+// A JADE container in its own JVM, attached to the main container started by MainContainer.
+// It runs its share of the nodes: node i goes to container i % containerCount, and so does light node i.
+// Usage: java blockchain.PeripheralContainer <main host> <main port> <container index> <container count> <node1,node2,...> [light1,light2,...]
+public class PeripheralContainer {
+
+	public static void main(String[] args) {
+		if (args.length < 5) {
+			System.err.println("Usage: PeripheralContainer <main host> <main port> <index> <count> <node names>");
+			System.exit(1);
+		}
+		String mainHost = args[0];
+		String mainPort = args[1];
+		int index = Integer.parseInt(args[2]);
+		int count = Integer.parseInt(args[3]);
+		String[] agentNames = args[4].split(",");
+		String[] lightNames = args.length > 5 ? args[5].split(",") : new String[0];
+
+		try {
+			Runtime runtime = Runtime.instance();
+			runtime.setCloseVM(true);
+
+			// Attaching to the main container over loopback
+			Profile profile = new ProfileImpl();
+			profile.setParameter(Profile.MAIN_HOST, mainHost);
+			profile.setParameter(Profile.MAIN_PORT, mainPort);
+			profile.setParameter(Profile.LOCAL_HOST, mainHost);
+			profile.setParameter(Profile.CONTAINER_NAME, "Container-" + (index + 1));
+			AgentContainer container = runtime.createAgentContainer(profile);
+
+			Object[] arguments = new Object[] { agentNames, NodeConfig.fromSystemProperties() };
+			for (int i = 0; i < agentNames.length; i++) {
+				if (i % count != index) continue;
+				AgentController agent = container.createNewAgent(agentNames[i], "blockchain.NodeAgent", arguments);
+				agent.start();
+			}
+			for (int i = 0; i < lightNames.length; i++) {
+				if (i % count != index) continue;
+				container.createNewAgent(lightNames[i], "blockchain.LightNodeAgent", arguments).start();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+}
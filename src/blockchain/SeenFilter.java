@@ -0,0 +1,36 @@
+package blockchain;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// Bounded rolling set of recently seen object ids (transaction ids, block hashes).
+// Ids are kept in two generations: when the current one is full it becomes the old one and the
+// previous old generation is dropped, so memory stays bounded and the most recent ids are always
+// remembered. Lookups are O(1).
+public class SeenFilter {
+
+	private int generationSize;
+	private Set<String> current = new HashSet<>();
+	private Set<String> previous = new HashSet<>();
+
+	public SeenFilter(int capacity) {
+		this.generationSize = Math.max(1, capacity / 2);
+	}
+
+	public void add(String id) {
+		if (current.size() >= generationSize) {
+			previous = current;
+			current = new HashSet<>();
+		}
+		current.add(id);
+	}
+
+	public boolean contains(String id) {
+		return current.contains(id) || previous.contains(id);
+	}
+
+	public int size() {
+		return current.size() + previous.size();
+	}
+
+}
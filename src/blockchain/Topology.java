@@ -0,0 +1,222 @@
+package blockchain;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+// Peer overlay of the network: who relays to whom.
+// Every node builds the same graph from the node names and the shared configuration (same seed),
+// so no coordination is needed. New objects are only sent to neighbours and flood hop by hop.
+//
+// Supported kinds:
+//   full        every node is connected to every other node (the original broadcast)
+//   random      random k-regular graph
+//   smallworld  Watts-Strogatz: ring where each node knows its k nearest nodes, each edge rewired with probability p
+//   explicit    adjacency list, e.g. "node1:node2,node3;node2:node3" (edges are made symmetric)
+public class Topology {
+
+	private static final int MAX_ATTEMPTS = 100;
+
+	private String description;
+	private Map<String, Set<String>> adjacency = new HashMap<>();
+
+	private Topology(String description, String[] names) {
+		this.description = description;
+		for (String name : names) adjacency.put(name, new LinkedHashSet<>());
+	}
+
+	public static Topology build(NodeConfig config, String[] names) {
+		switch (config.getTopology()) {
+			case "full":
+				return fullMesh(names);
+			case "random":
+				return randomRegular(names, config.getTopologyDegree(), config.getTopologySeed());
+			case "smallworld":
+				return smallWorld(names, config.getTopologyDegree(), config.getTopologyRewireProbability(),
+						config.getTopologySeed());
+			case "explicit":
+				return explicit(names, config.getTopologyAdjacency());
+			default:
+				throw new IllegalArgumentException("Unknown topology " + config.getTopology());
+		}
+	}
+
+	public static Topology fullMesh(String[] names) {
+		return fullMesh(names, "full mesh");
+	}
+
+	private static Topology fullMesh(String[] names, String description) {
+		Topology t = new Topology(description, names);
+		for (int i = 0; i < names.length; i++) {
+			for (int j = i + 1; j < names.length; j++) t.connect(names[i], names[j]);
+		}
+		return t;
+	}
+
+	// Pairing model: k stubs per node, each step joins two random free stubs of different, not yet
+	// connected nodes. Starts over in the rare case it gets stuck or the graph is not connected.
+	// The stubs only pair up if n * k is even, otherwise every node gets one more neighbour. The
+	// adjustment shows in the description, which the nodes log.
+	public static Topology randomRegular(String[] names, int k, long seed) {
+		int n = names.length;
+		if (k < 1) throw new IllegalArgumentException("Topology degree must be at least 1, got " + k);
+		String note = "";
+		if ((n * k) % 2 != 0) {
+			note = " (degree " + k + " raised to " + (k + 1) + ", " + n + " x " + k + " is odd)";
+			k++;
+		}
+		if (k >= n - 1) return fullMesh(names, "full mesh (random " + k + "-regular needs more than " + (k + 1) + " nodes)");
+
+		Random random = new Random(seed);
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			Topology t = new Topology("random " + k + "-regular" + note, names);
+			List<Integer> stubs = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < k; j++) stubs.add(i);
+			}
+
+			boolean stuck = false;
+			while (!stubs.isEmpty() && !stuck) {
+				stuck = true;
+				for (int tries = 0; tries < 100 * stubs.size(); tries++) {
+					int i = random.nextInt(stubs.size());
+					int j = random.nextInt(stubs.size());
+					String a = names[stubs.get(i)];
+					String b = names[stubs.get(j)];
+					if (a.equals(b) || t.adjacency.get(a).contains(b)) continue;
+
+					t.connect(a, b);
+					removeSwap(stubs, Math.max(i, j));
+					removeSwap(stubs, Math.min(i, j));
+					stuck = false;
+					break;
+				}
+			}
+			if (!stuck && t.isConnected()) return t;
+		}
+		throw new IllegalStateException("Could not build a connected " + k + "-regular graph of " + n + " nodes");
+	}
+
+	private static void removeSwap(List<Integer> list, int index) {
+		list.set(index, list.get(list.size() - 1));
+		list.remove(list.size() - 1);
+	}
+
+	public static Topology smallWorld(String[] names, int k, double rewireProbability, long seed) {
+		int n = names.length;
+		if (k < 1) throw new IllegalArgumentException("Topology degree must be at least 1, got " + k);
+		String note = "";
+		if (k % 2 != 0) {
+			note = " (degree " + k + " raised to " + (k + 1) + ", the ring needs an even degree)";
+			k++;
+		}
+		if (k >= n - 1) return fullMesh(names, "full mesh (small world k=" + k + " needs more than " + (k + 1) + " nodes)");
+
+		Random random = new Random(seed);
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			Topology t = new Topology("small world k=" + k + " p=" + rewireProbability + note, names);
+			for (int i = 0; i < n; i++) {
+				for (int j = 1; j <= k / 2; j++) t.connect(names[i], names[(i + j) % n]);
+			}
+
+			for (int i = 0; i < n; i++) {
+				for (int j = 1; j <= k / 2; j++) {
+					if (random.nextDouble() >= rewireProbability) continue;
+					String a = names[i];
+					String b = names[(i + j) % n];
+					String c = names[random.nextInt(n)];
+					if (c.equals(a) || t.adjacency.get(a).contains(c)) continue;
+					t.disconnect(a, b);
+					t.connect(a, c);
+				}
+			}
+			if (t.isConnected()) return t;
+		}
+		throw new IllegalStateException("Could not build a connected small world graph of " + n + " nodes");
+	}
+
+	public static Topology explicit(String[] names, String spec) {
+		Topology t = new Topology("explicit", names);
+		for (String entry : spec.split(";")) {
+			if (entry.trim().isEmpty()) continue;
+			String[] parts = entry.split(":");
+			if (parts.length != 2) throw new IllegalArgumentException("Invalid adjacency entry " + entry);
+			String node = parts[0].trim();
+			for (String neighbour : parts[1].split(",")) {
+				neighbour = neighbour.trim();
+				if (!t.adjacency.containsKey(node) || !t.adjacency.containsKey(neighbour)) {
+					throw new IllegalArgumentException("Unknown node in adjacency entry " + entry);
+				}
+				if (!node.equals(neighbour)) t.connect(node, neighbour);
+			}
+		}
+		return t;
+	}
+
+	private void connect(String a, String b) {
+		adjacency.get(a).add(b);
+		adjacency.get(b).add(a);
+	}
+
+	private void disconnect(String a, String b) {
+		adjacency.get(a).remove(b);
+		adjacency.get(b).remove(a);
+	}
+
+	public List<String> neighbours(String node) {
+		Set<String> n = adjacency.get(node);
+		return n == null ? new ArrayList<>() : new ArrayList<>(n);
+	}
+
+	public int edgeCount() {
+		int degrees = 0;
+		for (Set<String> n : adjacency.values()) degrees += n.size();
+		return degrees / 2;
+	}
+
+	// Hop distances from one node to every reachable node (BFS)
+	public Map<String, Integer> distancesFrom(String source) {
+		Map<String, Integer> dist = new HashMap<>();
+		Deque<String> queue = new ArrayDeque<>();
+		dist.put(source, 0);
+		queue.add(source);
+		while (!queue.isEmpty()) {
+			String node = queue.poll();
+			for (String next : adjacency.get(node)) {
+				if (dist.containsKey(next)) continue;
+				dist.put(next, dist.get(node) + 1);
+				queue.add(next);
+			}
+		}
+		return dist;
+	}
+
+	public boolean isConnected() {
+		if (adjacency.isEmpty()) return true;
+		return distancesFrom(adjacency.keySet().iterator().next()).size() == adjacency.size();
+	}
+
+	// Edges, diameter and average path length: how many messages and hops a flood costs
+	public String summary() {
+		int diameter = 0;
+		long pathSum = 0;
+		long pairs = 0;
+		for (String node : adjacency.keySet()) {
+			for (int d : distancesFrom(node).values()) {
+				if (d == 0) continue;
+				diameter = Math.max(diameter, d);
+				pathSum += d;
+				pairs++;
+			}
+		}
+		return String.format("%s: %d nodes, %d edges, diameter %d, average path %.2f", description,
+				adjacency.size(), edgeCount(), diameter, pairs == 0 ? 0.0 : (double) pathSum / pairs);
+	}
+
+}
@@ -57,6 +57,10 @@ public class Transaction implements Serializable{
 	public String getVersion() {
 		return version;
 	}
+	
+	public void setVersion(String version) {
+		this.version = version;
+	}
 
 	public TransactionInput getTxInput() {
 		return txInput;
@@ -73,6 +77,25 @@ public class Transaction implements Serializable{
 	public void setTxOutput(TransactionOutput txOutput) {
 		this.txOutput = txOutput;
 	}
+	
+	// Serialized size in bytes (wire encoding), used to budget block space and compute fee rates
+	public int estimateSize() {
+		return WireCodec.encodeTransaction(this).length;
+	}
+	
+	// Number of signature checks needed to validate the transaction (one per scriptSig entry)
+	public int countSigOps() {
+		int sigOps = 0;
+		for (TransactionInput.Input in : txInput.getInputList()) {
+			if (in.getScriptSig() != null) sigOps += in.getScriptSig().size();
+		}
+		return sigOps;
+	}
+	
+	// Data signed for one input: the transaction header fields and the outpoint it spends
+	public String getSigningData(TransactionInput.Input in) {
+		return id + "|" + version + "|" + senderHash + "|" + timestamp + "|IN" + in.getPrevTxId() + in.getIndex();
+	}
 
 
 
@@ -0,0 +1,63 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Outgoing transactions waiting to be sent, per peer.
+// Instead of one ACL message per transaction, a peer's transactions are sent together in a single
+// TRANSACTIONS message once the batch is full or the batching window has passed.
+public class TransactionBatcher {
+
+	private int maxBatch;
+	private long windowMillis;
+
+	private Map<String, List<Transaction>> queued = new HashMap<>();
+	private Map<String, Long> firstQueuedAt = new HashMap<>();
+
+	public TransactionBatcher(int maxBatch, long windowMillis) {
+		this.maxBatch = maxBatch;
+		this.windowMillis = windowMillis;
+	}
+
+	// Returns true if the peer's batch is full and should be sent now
+	public boolean add(String peer, Transaction tx, long now) {
+		List<Transaction> q = queued.computeIfAbsent(peer, k -> new ArrayList<>());
+		if (q.isEmpty()) firstQueuedAt.put(peer, now);
+		q.add(tx);
+		return q.size() >= maxBatch;
+	}
+
+	// Peers whose oldest queued transaction has waited for the whole window
+	public Collection<String> duePeers(long now) {
+		List<String> due = new ArrayList<>();
+		for (Map.Entry<String, Long> e : firstQueuedAt.entrySet()) {
+			if (now - e.getValue() >= windowMillis) due.add(e.getKey());
+		}
+		return due;
+	}
+
+	// Take the queued transactions of one peer, at most one batch
+	public List<Transaction> drain(String peer, long now) {
+		List<Transaction> q = queued.get(peer);
+		if (q == null || q.isEmpty()) return new ArrayList<>();
+		if (q.size() <= maxBatch) {
+			queued.remove(peer);
+			firstQueuedAt.remove(peer);
+			return q;
+		}
+		List<Transaction> batch = new ArrayList<>(q.subList(0, maxBatch));
+		q.subList(0, maxBatch).clear();
+		firstQueuedAt.put(peer, now);
+		return batch;
+	}
+
+	public int queuedCount() {
+		int count = 0;
+		for (List<Transaction> q : queued.values()) count += q.size();
+		return count;
+	}
+
+}
@@ -0,0 +1,121 @@
+package blockchain;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The set of confirmed unspent outputs, keyed by outpoint (prevTxId:index).
+// Outputs are grouped by transaction, so the unspent outputs of a transaction can be listed without
+// its block (which may have been pruned).
+public class UtxoSet {
+
+	// An output spent by a confirmed transaction, kept so the spend can be undone when its block is
+	// disconnected. output is null if the outpoint was not in the set.
+	public static class SpentOutput {
+		private final String txId;
+		private final int index;
+		private final TransactionOutput.Output output;
+
+		public SpentOutput(String txId, int index, TransactionOutput.Output output) {
+			this.txId = txId;
+			this.index = index;
+			this.output = output;
+		}
+
+		public String getTxId() { return txId; }
+		public int getIndex() { return index; }
+		public TransactionOutput.Output getOutput() { return output; }
+	}
+
+	private Map<String, Map<Integer, TransactionOutput.Output>> outputs = new HashMap<>();
+	private int size;
+
+	public static String key(String txId, int index) {
+		return txId + ":" + index;
+	}
+
+	public TransactionOutput.Output get(String txId, int index) {
+		Map<Integer, TransactionOutput.Output> txOutputs = outputs.get(txId);
+		return txOutputs == null ? null : txOutputs.get(index);
+	}
+
+	public boolean contains(String txId, int index) {
+		return get(txId, index) != null;
+	}
+
+	// Unspent outputs of a transaction by index, empty if none
+	public Map<Integer, TransactionOutput.Output> getOutputs(String txId) {
+		Map<Integer, TransactionOutput.Output> txOutputs = outputs.get(txId);
+		return txOutputs == null ? Collections.emptyMap() : Collections.unmodifiableMap(txOutputs);
+	}
+
+	public void put(String txId, int index, TransactionOutput.Output out) {
+		if (outputs.computeIfAbsent(txId, k -> new HashMap<>()).put(index, out) == null) size++;
+	}
+
+	public TransactionOutput.Output remove(String txId, int index) {
+		Map<Integer, TransactionOutput.Output> txOutputs = outputs.get(txId);
+		if (txOutputs == null) return null;
+		TransactionOutput.Output out = txOutputs.remove(index);
+		if (out != null) size--;
+		if (txOutputs.isEmpty()) outputs.remove(txId);
+		return out;
+	}
+
+	// Spend the outputs referenced by the inputs and add the new outputs of the transaction
+	public void applyTransaction(Transaction tx) {
+		applyTransaction(tx, null);
+	}
+
+	// Same, recording every spent output (one per input, in input order) into undo
+	public void applyTransaction(Transaction tx, List<SpentOutput> undo) {
+		for (TransactionInput.Input in : tx.getTxInput().getInputList()) {
+			TransactionOutput.Output spent = remove(in.getPrevTxId(), in.getIndex());
+			if (undo != null) undo.add(new SpentOutput(in.getPrevTxId(), in.getIndex(), spent));
+		}
+
+		List<TransactionOutput.Output> outs = tx.getTxOutput().getOutputList();
+		for (int i = 0; i < outs.size(); i++) {
+			put(tx.getId(), i, outs.get(i));
+		}
+	}
+
+	// Reverse applyTransaction: remove the outputs of the transaction and restore the outputs it spent,
+	// taken from the end of undo. Transactions must be undone in the reverse order they were applied.
+	public void undoTransaction(Transaction tx, List<SpentOutput> undo) {
+		for (int i = 0; i < tx.getTxOutput().getOutputList().size(); i++) {
+			remove(tx.getId(), i);
+		}
+
+		for (int i = tx.getTxInput().getInputList().size() - 1; i >= 0; i--) {
+			SpentOutput spent = undo.remove(undo.size() - 1);
+			if (spent.getOutput() != null) put(spent.getTxId(), spent.getIndex(), spent.getOutput());
+		}
+	}
+
+	// Copy sharing the output objects, e.g. to write a snapshot off the agent thread
+	public UtxoSet copy() {
+		UtxoSet copy = new UtxoSet();
+		for (Map.Entry<String, Map<Integer, TransactionOutput.Output>> e : outputs.entrySet()) {
+			copy.outputs.put(e.getKey(), new HashMap<>(e.getValue()));
+		}
+		copy.size = size;
+		return copy;
+	}
+
+	// Transaction ids having unspent outputs
+	public Iterable<String> getTxIds() {
+		return outputs.keySet();
+	}
+
+	public void clear() {
+		outputs.clear();
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,77 @@
+package blockchain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+
+// Snapshot of the UTXO set at a given chain tip. A pruned node has no old block bodies to replay,
+// so it restarts from this snapshot and only connects the blocks stored after it.
+// Layout: magic, version, tip hash, then per transaction its id and its unspent (index, value, script),
+// then the addresses already paid a SYSTEM grant (version 2).
+public class UtxoStore {
+
+	private static final int MAGIC = 0x5554584F; // "UTXO"
+	private static final byte VERSION = 2;
+
+	private Path file;
+
+	public UtxoStore(Path file) {
+		this.file = file;
+	}
+
+	// Write to a temporary file first so a crash during the save never leaves a truncated snapshot
+	public synchronized void save(String tipHash, UtxoSet utxos, Collection<String> funded) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeUTF(tipHash);
+			out.writeInt(utxos.size());
+			for (String txId : utxos.getTxIds()) {
+				for (Map.Entry<Integer, TransactionOutput.Output> e : utxos.getOutputs(txId).entrySet()) {
+					out.writeUTF(txId);
+					out.writeInt(e.getKey());
+					out.writeDouble(e.getValue().getValue());
+					out.writeUTF(e.getValue().getScriptPubKey());
+				}
+			}
+			out.writeInt(funded.size());
+			for (String address : funded) out.writeUTF(address);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Fill utxos and funded from the snapshot and return its tip hash, or null if there is no snapshot.
+	// A version 1 snapshot has no funded addresses.
+	public synchronized String load(UtxoSet utxos, Collection<String> funded) throws IOException {
+		if (!Files.exists(file)) return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			byte version = 0;
+			if (in.readInt() != MAGIC || ((version = in.readByte()) != 1 && version != VERSION)) {
+				throw new IOException("Unknown UTXO snapshot format");
+			}
+			String tipHash = in.readUTF();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String txId = in.readUTF();
+				int index = in.readInt();
+				double value = in.readDouble();
+				utxos.put(txId, index, new TransactionOutput.Output(value, in.readUTF()));
+			}
+			if (version >= 2) {
+				int addresses = in.readInt();
+				for (int i = 0; i < addresses; i++) funded.add(in.readUTF());
+			}
+			return tipHash;
+		}
+	}
+
+}
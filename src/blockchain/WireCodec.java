@@ -0,0 +1,611 @@
+package blockchain;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary encoding of blocks and transactions for the network (and for the disk stores).
+// Replaces Java serialization: no class descriptors or collection wrappers, counts and integers are
+// varints, hex strings (hashes, ids, addresses) are stored as raw bytes and public keys as X.509 bytes.
+// A public key is written in full only the first time it appears in a message; later occurrences are
+// back-references to it, which matters since a block usually holds many inputs signed by the same keys.
+//
+// Every message starts with the codec version and a type byte:
+//   [version][type][payload]
+public final class WireCodec {
+
+	public static final byte VERSION = 1;
+
+	public static final byte TYPE_TRANSACTION = 1;
+	public static final byte TYPE_BLOCK = 2;
+	public static final byte TYPE_INVENTORY = 3;
+	public static final byte TYPE_COMPACT_BLOCK = 4;
+	public static final byte TYPE_BLOCK_TXNS = 5;
+	public static final byte TYPE_TRANSACTIONS = 6;
+	public static final byte TYPE_HEADERS = 7;
+	public static final byte TYPE_GET_HEADERS = 8;
+	public static final byte TYPE_GET_PROOFS = 9;
+	public static final byte TYPE_PROOFS = 10;
+
+	// Tags of the variable string encoding
+	private static final byte STR_EMPTY = 0;
+	private static final byte STR_HEX = 1;
+	private static final byte STR_UTF8 = 2;
+	private static final byte STR_HASH = 3; // 64 hex chars -> exactly 32 raw bytes, no length
+
+	private WireCodec() {}
+
+	// === Messages ===
+
+	public static byte[] encodeTransaction(Transaction tx) {
+		Writer w = new Writer();
+		w.writeByte(VERSION);
+		w.writeByte(TYPE_TRANSACTION);
+		writeTransaction(w, tx);
+		return w.toByteArray();
+	}
+
+	public static Transaction decodeTransaction(byte[] data) throws IOException {
+		Reader r = new Reader(data);
+		r.expectHeader(TYPE_TRANSACTION);
+		return readTransaction(r);
+	}
+
+	// Several transactions in one message; public keys repeated across them are written only once
+	public static byte[] encodeTransactions(List<Transaction> txs) {
+		Writer w = new Writer();
+		w.writeByte(VERSION);
+		w.writeByte(TYPE_TRANSACTIONS);
+		w.writeVarLong(txs.size());
+		for (Transaction tx : txs) writeTransaction(w, tx);
+		return w.toByteArray();
+	}
+
+	public static List<Transaction> decodeTransactions(byte[] data) throws IOException {
+		Reader r = new Reader(data);
+		r.expectHeader(TYPE_TRANSACTIONS);
+		int count = r.readCount();
+		List<Transaction> txs = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) txs.add(readTransaction(r));
+		return txs;
+	}
+
+	public static byte[] encodeBlock(Block block) {
+		Writer w = new Writer();
+		w.writeByte(VERSION);
+		w.writeByte(TYPE_BLOCK);
+		writeBlock(w, block);
+		return w.toByteArray();
+	}
+
+	public static Block decodeBlock(byte[] data) throws IOException {
+		return decodeBlock(ByteBuffer.wrap(data));
+	}
+
+	// Decoding straight from a buffer, e.g. a memory-mapped block file
+	public static Block decodeBlock(ByteBuffer data) throws IOException {
+		Reader r = new Reader(data);
+		r.expectHeader(TYPE_BLOCK);
+		return readBlock(r);
+	}
+
+	// Inventory lists are used both to announce objects (INV) and to request them (GETDATA)
+	public static byte[] encodeInventory(List<Inventory.Item> items) {
+		Writer w = new Writer();
+		w.writeByte(VERSION);
+		w.writeByte(TYPE_INVENTORY);
+		w.writeVarLong(items.size());
+		for (Inventory.Item item : items) {
+			w.writeByte(item.getType());
+			w.writeString(item.getId());
+		}
+		return w.toByteArray();
+	}
+
+	public static List<Inventory.Item> decodeInventory(byte[] data) throws IOException {
+		Reader r = new Reader(data);
+		r.expectHeader(TYPE_INVENTORY);
+		int count = r.readCount();
+		List<Inventory.Item> items = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			byte type = r.get();
+			items.add(new Inventory.Item(type, r.readString()));
+		}
+		return items;
+	}
+
+	// Header, mining time, prefilled (index, transaction) pairs, then the short ids
+	public static byte[] encodeCompactBlock(CompactBlock cb) {
+		Writer w = new Writer();
+		w.writeByte(VERSION);
+		w.writeByte(TYPE_COMPACT_BLOCK);
+		writeBlockHeader(w, cb.getHeader());
+		w.writeVarLong(cb.getHeader().getMiningTime());
+		w.writeVarLong(cb.getPrefilled().size());
+		for (int i = 0; i < cb.getPrefilled().size(); i++) {
+			w.writeVarLong(cb.getPrefilledIndexes().get(i));
+			writeTransaction(w, cb.getPrefilled().get(i));
+		}
+		w.writeVarLong(cb.getShortIds().size());
+		for (String id : cb.getShortIds()) w.writeString(id);
+		return w.toByteArray();
+	}
+
+	public static CompactBlock decodeCompactBlock(byte[] data) throws IOException {
+		Reader r = new Reader(data);
+		r.expectHeader(TYPE_COMPACT_BLOCK);
+		Block header = readBlockHeader(r);
+		header.setMiningTime(r.readVarLong());
+		CompactBlock cb = new CompactBlock(header);
+		int prefilledCount = r.readCount();
+		for (int i = 0; i < prefilledCount; i++) {
+			cb.getPrefilledIndexes().add((int) r.readVarLong());
+			cb.getPrefilled().add(readTransaction(r));
+		}
+		int idCount = r.readCount();
+		for (int i = 0; i < idCount; i++) cb.getShortIds().add(r.readString());
+
+		// Prefilled indexes must be increasing and inside the block, or reconstruction would misplace transactions
+		int last = -1;
+		for (int index : cb.getPrefilledIndexes()) {
+			if (index <= last || index >= cb.getTransactionCount()) throw new IOException("Invalid prefilled index " + index);
+			last = index;
+		}
+		return cb;
+	}
+
+	// Used both for GETBLOCKTXN (no transactions) and BLOCKTXN
+	public static byte[] encodeBlockTxns(CompactBlock.BlockTxns msg) {
+		Writer w = new Writer();
+		w.writeByte(VERSION);
+		w.writeByte(TYPE_BLOCK_TXNS);
+		w.writeString(msg.getBlockHash());
+		w.writeVarLong(msg.getIndexes().size());
+		for (int index : msg.getIndexes()) w.writeVarLong(index);
+		w.writeVarLong(msg.getTxs().size());
+		for (Transaction tx : msg.getTxs()) writeTransaction(w, tx);
+		return w.toByteArray();
+	}
+
+	public static CompactBlock.BlockTxns decodeBlockTxns(byte[] data) throws IOException {
+		Reader r = new Reader(data);
+		r.expectHeader(TYPE_BLOCK_TXNS);
+		String hash = r.readString();
+		int indexCount = r.readCount();
+		List<Integer> indexes = new ArrayList<>(indexCount);
+		for (int i = 0; i < indexCount; i++) indexes.add((int) r.readVarLong());
+		int txCount = r.readCount();
+		List<Transaction> txs = new ArrayList<>(txCount);
+		for (int i = 0; i < txCount; i++) txs.add(readTransaction(r));
+		return new CompactBlock.BlockTxns(hash, indexes, txs);
+	}
+
+	// Block headers (and mining times) without their transactions
+	public static byte[] encodeHeaders(List<Block> headers) {
+		Writer w = new Writer();
+		w.writeByte(VERSION);
+		w.writeByte(TYPE_HEADERS);
+		w.writeVarLong(headers.size());
+		for (Block b : headers) {
+			writeBlockHeader(w, b);
+			w.writeVarLong(b.getMiningTime());
+		}
+		return w.toByteArray();
+	}
+
+	public static List<Block> decodeHeaders(byte[] data) throws IOException {
+		Reader r = new Reader(data);
+		r.expectHeader(TYPE_HEADERS);
+		int count = r.readCount();
+		List<Block> headers = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Block b = readBlockHeader(r);
+			b.setMiningTime(r.readVarLong());
+			headers.add(b);
+		}
+		return headers;
+	}
+
+	// Block locator: hashes of the requester's chain, newest first
+	public static byte[] encodeGetHeaders(List<String> locator) {
+		Writer w = new Writer();
+		w.writeByte(VERSION);
+		w.writeByte(TYPE_GET_HEADERS);
+		w.writeVarLong(locator.size());
+		for (String hash : locator) w.writeString(hash);
+		return w.toByteArray();
+	}
+
+	public static List<String> decodeGetHeaders(byte[] data) throws IOException {
+		Reader r = new Reader(data);
+		r.expectHeader(TYPE_GET_HEADERS);
+		int count = r.readCount();
+		List<String> locator = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) locator.add(r.readString());
+		return locator;
+	}
+
+	public static byte[] encodeGetProofs(MerkleProof.Request req) {
+		Writer w = new Writer();
+		w.writeByte(VERSION);
+		w.writeByte(TYPE_GET_PROOFS);
+		w.writeString(req.getAddress());
+		w.writeVarLong(req.getBlockHashes().size());
+		for (String hash : req.getBlockHashes()) w.writeString(hash);
+		return w.toByteArray();
+	}
+
+	public static MerkleProof.Request decodeGetProofs(byte[] data) throws IOException {
+		Reader r = new Reader(data);
+		r.expectHeader(TYPE_GET_PROOFS);
+		String address = r.readString();
+		int count = r.readCount();
+		List<String> hashes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) hashes.add(r.readString());
+		return new MerkleProof.Request(address, hashes);
+	}
+
+	// Searched block hashes, then per proof: block hash, index, branch and the transaction
+	public static byte[] encodeProofs(MerkleProof.Response resp) {
+		Writer w = new Writer();
+		w.writeByte(VERSION);
+		w.writeByte(TYPE_PROOFS);
+		w.writeVarLong(resp.getSearched().size());
+		for (String hash : resp.getSearched()) w.writeString(hash);
+		w.writeVarLong(resp.getProofs().size());
+		for (MerkleProof p : resp.getProofs()) {
+			w.writeString(p.getBlockHash());
+			w.writeVarLong(p.getIndex());
+			w.writeVarLong(p.getBranch().size());
+			for (String hash : p.getBranch()) w.writeString(hash);
+			writeTransaction(w, p.getTx());
+		}
+		return w.toByteArray();
+	}
+
+	public static MerkleProof.Response decodeProofs(byte[] data) throws IOException {
+		Reader r = new Reader(data);
+		r.expectHeader(TYPE_PROOFS);
+		int searchedCount = r.readCount();
+		List<String> searched = new ArrayList<>(searchedCount);
+		for (int i = 0; i < searchedCount; i++) searched.add(r.readString());
+		int proofCount = r.readCount();
+		List<MerkleProof> proofs = new ArrayList<>(proofCount);
+		for (int i = 0; i < proofCount; i++) {
+			String blockHash = r.readString();
+			int index = (int) r.readVarLong();
+			int branchSize = r.readCount();
+			List<String> branch = new ArrayList<>(branchSize);
+			for (int j = 0; j < branchSize; j++) branch.add(r.readString());
+			proofs.add(new MerkleProof(blockHash, index, branch, readTransaction(r)));
+		}
+		return new MerkleProof.Response(searched, proofs);
+	}
+
+	// Type byte of an encoded message, without decoding it
+	public static byte peekType(byte[] data) throws IOException {
+		if (data == null || data.length < 2 || data[0] != VERSION) {
+			throw new IOException("Unsupported wire format");
+		}
+		return data[1];
+	}
+
+	// === Block ===
+
+	static void writeBlock(Writer w, Block b) {
+		writeBlockHeader(w, b);
+		w.writeVarLong(b.getMiningTime());
+		w.writeVarLong(b.getTransactions().size());
+		for (Transaction tx : b.getTransactions()) writeTransaction(w, tx);
+	}
+
+	static Block readBlock(Reader r) throws IOException {
+		Block b = readBlockHeader(r);
+		b.setMiningTime(r.readVarLong());
+		int count = r.readCount();
+		List<Transaction> txs = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) txs.add(readTransaction(r));
+		b.setTransactions(txs);
+		return b;
+	}
+
+	static void writeBlockHeader(Writer w, Block b) {
+		w.writeString(b.getId());
+		w.writeString(b.getSender());
+		w.writeString(b.getVersion());
+		w.writeVarLong(b.getTimestamp());
+		w.writeString(b.getHashPrevBlock());
+		w.writeVarLong(b.getNonce() & 0xFFFFFFFFL);
+		w.writeVarLong(b.getTarget());
+		w.writeString(b.getMerkleRoot());
+		w.writeString(b.getHashHeaderBlock());
+	}
+
+	static Block readBlockHeader(Reader r) throws IOException {
+		String id = r.readString();
+		String sender = r.readString();
+		String version = r.readString();
+		long timestamp = r.readVarLong();
+		String prev = r.readString();
+		int nonce = (int) r.readVarLong();
+		int target = (int) r.readVarLong();
+
+		Block b = new Block(id, sender, prev, target);
+		b.setVersion(version);
+		b.setTimestamp(timestamp);
+		b.setNonce(nonce);
+		b.setMerkleRoot(r.readString());
+		b.setHashHeaderBlock(r.readString());
+		return b;
+	}
+
+	// === Transaction ===
+
+	static void writeTransaction(Writer w, Transaction tx) {
+		w.writeString(tx.getVersion());
+		w.writeString(tx.getId());
+		w.writeString(tx.getSenderHash());
+		w.writeVarLong(tx.getTimestamp());
+
+		List<TransactionInput.Input> inputs = tx.getTxInput().getInputList();
+		w.writeVarLong(inputs.size());
+		for (TransactionInput.Input in : inputs) writeInput(w, in);
+
+		List<TransactionOutput.Output> outputs = tx.getTxOutput().getOutputList();
+		w.writeVarLong(outputs.size());
+		for (TransactionOutput.Output out : outputs) writeOutput(w, out);
+	}
+
+	static Transaction readTransaction(Reader r) throws IOException {
+		String version = r.readString();
+		Transaction tx = new Transaction(r.readString());
+		tx.setVersion(version);
+		tx.setSenderHash(r.readString());
+		tx.setTimestamp(r.readVarLong());
+
+		TransactionInput txIn = new TransactionInput();
+		int inCount = r.readCount();
+		for (int i = 0; i < inCount; i++) txIn.getInputList().add(readInput(r));
+		txIn.setInCounter(inCount);
+		tx.setTxInput(txIn);
+
+		TransactionOutput txOut = new TransactionOutput();
+		int outCount = r.readCount();
+		for (int i = 0; i < outCount; i++) txOut.getOutputList().add(readOutput(r));
+		txOut.setOutCounter(outCount);
+		tx.setTxOutput(txOut);
+
+		return tx;
+	}
+
+	static void writeInput(Writer w, TransactionInput.Input in) {
+		w.writeString(in.getPrevTxId());
+		w.writeVarLong(in.getIndex());
+
+		Map<PublicKey, String> scriptSig = in.getScriptSig() != null ? in.getScriptSig() : new HashMap<>();
+		w.writeVarLong(scriptSig.size());
+		for (Map.Entry<PublicKey, String> e : scriptSig.entrySet()) {
+			w.writePublicKey(e.getKey());
+			w.writeBytes(Base64.getDecoder().decode(e.getValue()));
+		}
+	}
+
+	static TransactionInput.Input readInput(Reader r) throws IOException {
+		String prevTxId = r.readString();
+		int index = (int) r.readVarLong();
+
+		Map<PublicKey, String> scriptSig = new HashMap<>();
+		int sigCount = r.readCount();
+		for (int i = 0; i < sigCount; i++) {
+			PublicKey key = r.readPublicKey();
+			scriptSig.put(key, Base64.getEncoder().encodeToString(r.readBytes()));
+		}
+		return new TransactionInput.Input(prevTxId, index, scriptSig);
+	}
+
+	static void writeOutput(Writer w, TransactionOutput.Output out) {
+		w.writeDouble(out.getValue());
+		w.writeString(out.getScriptPubKey());
+	}
+
+	static TransactionOutput.Output readOutput(Reader r) throws IOException {
+		double value = r.readDouble();
+		return new TransactionOutput.Output(value, r.readString());
+	}
+
+	static PublicKey decodePublicKey(byte[] encoded) throws IOException {
+		try {
+			return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+		} catch (Exception e) {
+			throw new IOException("Invalid public key", e);
+		}
+	}
+
+	// === Primitive writer / reader ===
+
+	static class Writer {
+		private ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		private Map<PublicKey, Integer> keyRefs = new HashMap<>();
+
+		void writeByte(int b) {
+			out.write(b);
+		}
+
+		// Unsigned LEB128: 7 bits per byte, high bit set on every byte but the last
+		void writeVarLong(long v) {
+			while ((v & ~0x7FL) != 0) {
+				out.write((int) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			out.write((int) v);
+		}
+
+		void writeDouble(double d) {
+			long bits = Double.doubleToLongBits(d);
+			for (int i = 7; i >= 0; i--) out.write((int) (bits >>> (i * 8)));
+		}
+
+		void writeBytes(byte[] b) {
+			writeVarLong(b.length);
+			out.write(b, 0, b.length);
+		}
+
+		// Hex strings (hashes, ids, addresses) take half the space as raw bytes
+		void writeString(String s) {
+			if (s == null || s.isEmpty()) {
+				writeByte(STR_EMPTY);
+			} else if (s.length() == 64 && isLowerHex(s)) {
+				writeByte(STR_HASH);
+				byte[] raw = hexToBytes(s);
+				out.write(raw, 0, raw.length);
+			} else if (s.length() % 2 == 0 && isLowerHex(s)) {
+				writeByte(STR_HEX);
+				writeBytes(hexToBytes(s));
+			} else {
+				writeByte(STR_UTF8);
+				writeBytes(s.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		// 0 + X.509 bytes for a new key, (n + 1) for the n-th key already written in this message
+		void writePublicKey(PublicKey key) {
+			Integer ref = keyRefs.get(key);
+			if (ref != null) {
+				writeVarLong(ref + 1);
+			} else {
+				writeVarLong(0);
+				writeBytes(key.getEncoded());
+				keyRefs.put(key, keyRefs.size());
+			}
+		}
+
+		byte[] toByteArray() {
+			return out.toByteArray();
+		}
+	}
+
+	static class Reader {
+		private ByteBuffer buf;
+		private List<PublicKey> keys = new ArrayList<>();
+
+		Reader(byte[] data) {
+			this(ByteBuffer.wrap(data));
+		}
+
+		Reader(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		void expectHeader(byte type) throws IOException {
+			try {
+				byte version = buf.get();
+				if (version != VERSION) throw new IOException("Unsupported wire version " + version);
+				byte actual = buf.get();
+				if (actual != type) throw new IOException("Unexpected message type " + actual);
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated message", e);
+			}
+		}
+
+		long readVarLong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = get();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return v;
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		// A collection size, bounded by what is left in the buffer so a bad length cannot allocate GBs
+		int readCount() throws IOException {
+			long n = readVarLong();
+			if (n < 0 || n > buf.remaining()) throw new IOException("Invalid count " + n);
+			return (int) n;
+		}
+
+		double readDouble() throws IOException {
+			long bits = 0;
+			for (int i = 0; i < 8; i++) bits = (bits << 8) | (get() & 0xFF);
+			return Double.longBitsToDouble(bits);
+		}
+
+		byte[] readBytes() throws IOException {
+			int len = readCount();
+			byte[] b = new byte[len];
+			buf.get(b);
+			return b;
+		}
+
+		PublicKey readPublicKey() throws IOException {
+			long ref = readVarLong();
+			if (ref == 0) {
+				PublicKey key = decodePublicKey(readBytes());
+				keys.add(key);
+				return key;
+			}
+			if (ref > keys.size()) throw new IOException("Invalid public key reference " + ref);
+			return keys.get((int) ref - 1);
+		}
+
+		String readString() throws IOException {
+			byte tag = get();
+			switch (tag) {
+				case STR_EMPTY:
+					return "";
+				case STR_HASH: {
+					if (buf.remaining() < 32) throw new IOException("Truncated hash");
+					byte[] raw = new byte[32];
+					buf.get(raw);
+					return bytesToHex(raw);
+				}
+				case STR_HEX:
+					return bytesToHex(readBytes());
+				case STR_UTF8:
+					return new String(readBytes(), StandardCharsets.UTF_8);
+				default:
+					throw new IOException("Unknown string tag " + tag);
+			}
+		}
+
+		byte get() throws IOException {
+			if (!buf.hasRemaining()) throw new IOException("Truncated message");
+			return buf.get();
+		}
+	}
+
+	// === Hex helpers ===
+
+	private static boolean isLowerHex(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) return false;
+		}
+		return true;
+	}
+
+	static byte[] hexToBytes(String s) {
+		byte[] b = new byte[s.length() / 2];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) ((Character.digit(s.charAt(2 * i), 16) << 4) | Character.digit(s.charAt(2 * i + 1), 16));
+		}
+		return b;
+	}
+
+	static String bytesToHex(byte[] b) {
+		StringBuilder sb = new StringBuilder(b.length * 2);
+		for (byte x : b) sb.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,134 @@
+package blockchain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// Size and throughput comparison between Java serialization (the old ACL content path)
+// and WireCodec, on a block full of signed two-input / two-output transactions.
+// Usage: java blockchain.WireCodecBenchmark [transactions per block] [iterations]
+public class WireCodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int txCount = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+		Block block = sampleBlock(txCount);
+		Transaction tx = block.getTransactions().get(1);
+
+		// Round trip check before timing anything
+		Block decoded = WireCodec.decodeBlock(WireCodec.encodeBlock(block));
+		if (!decoded.calculateMerkleRoot().equals(block.getMerkleRoot()) ||
+			!decoded.calculateBlockHash().equals(block.getHashHeaderBlock())) {
+			throw new IllegalStateException("WireCodec round trip changed the block");
+		}
+
+		System.out.println("Block with " + txCount + " transactions, " + iterations + " iterations");
+		System.out.printf("%-22s %12s %14s %14s%n", "", "bytes", "encode/s", "decode/s");
+		report("Transaction (Java)", javaSize(tx), javaThroughput(tx, iterations * txCount, true),
+				javaThroughput(tx, iterations * txCount, false));
+		report("Transaction (Wire)", WireCodec.encodeTransaction(tx).length,
+				wireThroughput(tx, iterations * txCount, true), wireThroughput(tx, iterations * txCount, false));
+		report("Block (Java)", javaSize(block), javaThroughput(block, iterations, true),
+				javaThroughput(block, iterations, false));
+		report("Block (Wire)", WireCodec.encodeBlock(block).length, wireThroughput(block, iterations, true),
+				wireThroughput(block, iterations, false));
+	}
+
+	private static void report(String name, int bytes, double encodePerSec, double decodePerSec) {
+		System.out.printf("%-22s %12d %14.0f %14.0f%n", name, bytes, encodePerSec, decodePerSec);
+	}
+
+	private static int javaSize(Serializable obj) throws Exception {
+		return javaEncode(obj).length;
+	}
+
+	private static byte[] javaEncode(Serializable obj) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+			oos.writeObject(obj);
+		}
+		return bos.toByteArray();
+	}
+
+	private static double javaThroughput(Serializable obj, int n, boolean encode) throws Exception {
+		byte[] data = javaEncode(obj);
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			if (encode) {
+				javaEncode(obj);
+			} else {
+				try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+					ois.readObject();
+				}
+			}
+		}
+		return n / ((System.nanoTime() - start) / 1e9);
+	}
+
+	private static double wireThroughput(Object obj, int n, boolean encode) throws Exception {
+		boolean isBlock = obj instanceof Block;
+		byte[] data = isBlock ? WireCodec.encodeBlock((Block) obj) : WireCodec.encodeTransaction((Transaction) obj);
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			if (encode) {
+				if (isBlock) WireCodec.encodeBlock((Block) obj); else WireCodec.encodeTransaction((Transaction) obj);
+			} else {
+				if (isBlock) WireCodec.decodeBlock(data); else WireCodec.decodeTransaction(data);
+			}
+		}
+		return n / ((System.nanoTime() - start) / 1e9);
+	}
+
+	// A mined-looking block with a coinbase and txCount signed transactions
+	static Block sampleBlock(int txCount) throws Exception {
+		KeyPair keyPair = CryptoUtils.generateKeyPair();
+		String pubKeyStr = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+		String address = CryptoUtils.hashData(CryptoUtils.hashData(pubKeyStr)).substring(0, 40);
+		String other = CryptoUtils.hashData(address).substring(0, 40);
+
+		Block block = new Block(newId(), address, CryptoUtils.hashData("previous"), 3);
+
+		Transaction coinbase = new Transaction(newId());
+		coinbase.setSenderHash("SYSTEM_COINBASE");
+		coinbase.getTxOutput().getOutputList().add(new TransactionOutput.Output(6.25, address));
+		coinbase.getTxOutput().setOutCounter(1);
+		block.getTransactions().add(coinbase);
+
+		for (int i = 0; i < txCount; i++) {
+			Transaction tx = new Transaction(newId());
+			tx.setSenderHash(address);
+			for (int j = 0; j < 2; j++) {
+				String prevTxId = newId();
+				String digest = CryptoUtils.hashData(tx.getId() + "|" + tx.getVersion() + "|" + address
+						+ "|" + tx.getTimestamp() + "|IN" + prevTxId + j);
+				Map<PublicKey, String> scriptSig = new HashMap<>();
+				scriptSig.put(keyPair.getPublic(), CryptoUtils.signData(digest, keyPair.getPrivate()));
+				tx.getTxInput().getInputList().add(new TransactionInput.Input(prevTxId, j, scriptSig));
+			}
+			tx.getTxInput().setInCounter(2);
+			tx.getTxOutput().getOutputList().add(new TransactionOutput.Output(1.5, other));
+			tx.getTxOutput().getOutputList().add(new TransactionOutput.Output(0.49, address));
+			tx.getTxOutput().setOutCounter(2);
+			block.getTransactions().add(tx);
+		}
+
+		block.setMerkleRoot(block.calculateMerkleRoot());
+		block.setNonce(12345);
+		block.setHashHeaderBlock(block.calculateBlockHash());
+		return block;
+	}
+
+	private static String newId() {
+		return UUID.randomUUID().toString().substring(0, 8);
+	}
+
+}